@@ -5,8 +5,8 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +53,19 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = newQueue(Config.getString("Interrupt.queue", "heap"));
+    }
+
+    private static PendingQueue newQueue(String kind) {
+	if (kind.equals("treeset"))
+	    return new TreeSetQueue();
+	else if (kind.equals("heap"))
+	    return new HeapQueue();
+	else if (kind.equals("wheel"))
+	    return new WheelQueue();
+
+	Lib.assertNotReached("unknown interrupt queue: " + kind);
+	return null;
     }
 
     /**
@@ -120,11 +132,44 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Idle the processor until just before the next pending interrupt is due.
+     * Simulated time is advanced by as many kernel ticks as can elapse before
+     * that interrupt, so the next tick will invoke it exactly as if the
+     * caller had spent one tick at a time waiting for it. Interrupts must be
+     * enabled, and the caller should have nothing to do until an interrupt
+     * handler makes it so.
+     */
+    public void idle() {
+	Lib.assertTrue(enabled);
+
+	long wait = timeUntilNextInterrupt();
+	if (wait == Long.MAX_VALUE)
+	    return;
+
+	long count = (wait-1) / Stats.KernelTick;
+	if (count > 0) {
+	    Lib.debug(dbgInt, "Idling for " + count + " ticks");
+	    tick(true, count);
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+
+	PendingInterrupt toOccur = freeInterrupts;
+	if (toOccur != null)
+	    freeInterrupts = toOccur.next;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.next = null;
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
@@ -133,16 +178,36 @@ public final class Interrupt {
 	pending.add(toOccur);
     }
 
+    private long timeUntilNextInterrupt() {
+	PendingInterrupt first = pending.first();
+	if (first == null)
+	    return Long.MAX_VALUE;
+
+	return first.time - privilege.stats.totalTicks;
+    }
+
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, long count) {
 	Stats stats = privilege.stats;
 
+	Lib.assertTrue(count > 0);
+
+	long ticks = count * (inKernelMode ? Stats.KernelTick : Stats.UserTick);
+
+	// batching is only legal if no interrupt was due before the last tick
+	Lib.assertTrue(count == 1 ||
+		       timeUntilNextInterrupt() > ticks - (ticks/count));
+
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += ticks;
+	    stats.totalTicks += ticks;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += ticks;
+	    stats.totalTicks += ticks;
 	}
 
 	if (Lib.test(dbgInt))
@@ -161,19 +226,13 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	PendingInterrupt next = pending.pollDue(time);
+	if (next == null)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
+	for (; next != null; next = pending.pollDue(time)) {
 	    Lib.assertTrue(next.time <= time);
 
 	    if (privilege.processor != null)
@@ -182,6 +241,12 @@ public final class Interrupt {
 	    Lib.debug(dbgInt, "  " + next.type);
 			
 	    next.handler.run();
+
+	    // recycle the interrupt once its handler is done with it
+	    next.type = null;
+	    next.handler = null;
+	    next.next = freeInterrupts;
+	    freeInterrupts = next;
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +257,9 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] all = pending.toArray();
+	for (int i=0; i<all.length; i++) {
+	    PendingInterrupt toOccur = all[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,14 +267,83 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Test the pending interrupt queues. Each queue is first checked to
+     * report its first interrupt correctly as it empties and fills again,
+     * then run through the same schedule of interrupts to check that they
+     * fire in the same order, and the schedule/fire throughput of each is
+     * printed.
+     */
+    public static void selfTest() {
+	String[] kinds = { "treeset", "heap", "wheel" };
+	final int numPending = 1000, numFired = 1000000;
+	long expected = 0;
+
+	System.out.println("Interrupt queue benchmark: " + numPending +
+			   " pending, " + numFired + " fired");
+	
+	for (int k=0; k<kinds.length; k++) {
+	    PendingQueue queue = newQueue(kinds[k]);
+
+	    // an emptied queue must notice the interrupts added to it
+	    Lib.assertTrue(queue.first() == null);
+	    PendingInterrupt a = newTestInterrupt(100, 0);
+	    queue.add(a);
+	    Lib.assertTrue(queue.first() == a);
+	    Lib.assertTrue(queue.pollDue(100) == a);
+	    Lib.assertTrue(queue.first() == null);
+	    PendingInterrupt b = newTestInterrupt(5000, 1);
+	    queue.add(b);
+	    Lib.assertTrue(queue.first() == b,
+			   kinds[k] + " queue lost an interrupt added when empty");
+	    PendingInterrupt c = newTestInterrupt(200, 2);
+	    queue.add(c);
+	    Lib.assertTrue(queue.first() == c);
+	    Lib.assertTrue(queue.pollDue(4999) == c);
+	    Lib.assertTrue(queue.pollDue(4999) == null);
+	    Lib.assertTrue(queue.pollDue(5000) == b);
+	    Lib.assertTrue(queue.first() == null);
+
+	    queue = newQueue(kinds[k]);
+	    Random random = new Random(0);
+	    long id = 0, checksum = 0;
+
+	    for (int i=0; i<numPending; i++)
+		queue.add(newTestInterrupt(1+random.nextInt(2000), id++));
+
+	    long startTime = System.nanoTime();
+	    
+	    // fire the earliest interrupt, and schedule another in its place
+	    for (int i=0; i<numFired; i++) {
+		PendingInterrupt next = queue.pollDue(Long.MAX_VALUE);
+		checksum = checksum*31 + next.id;
+
+		next.time += 1 + random.nextInt(2000);
+		next.id = id++;
+		queue.add(next);
+	    }
+
+	    long elapsed = System.nanoTime() - startTime;
+
+	    if (k == 0)
+		expected = checksum;
+	    Lib.assertTrue(checksum == expected,
+			   kinds[k] + " queue fired out of order");
+
+	    System.out.println("  " + kinds[k] + ": " +
+			       (numFired * 1000000000L / Math.max(1, elapsed)) +
+			       " interrupts/second");
 	}
+    }
+
+    private static PendingInterrupt newTestInterrupt(long time, long id) {
+	PendingInterrupt toOccur = new PendingInterrupt();
+	toOccur.time = time;
+	toOccur.id = id;
+	return toOccur;
+    }
 
+    private static class PendingInterrupt implements Comparable {
 	public int compareTo(Object o) {
 	    PendingInterrupt toOccur = (PendingInterrupt) o;
 
@@ -230,14 +365,310 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	/** The next interrupt in a wheel slot, or in the free list. */
+	private PendingInterrupt next;
+    }
+
+    /**
+     * The set of pending interrupts, ordered by time, with ties broken by the
+     * order in which they were scheduled.
+     */
+    private interface PendingQueue {
+	/** Add an interrupt to this queue. */
+	void add(PendingInterrupt toOccur);
+
+	/** Return the first interrupt, or <tt>null</tt> if none are pending. */
+	PendingInterrupt first();
+
+	/**
+	 * Remove and return the first interrupt, if it is due no later than
+	 * <i>time</i>. Otherwise return <tt>null</tt>.
+	 */
+	PendingInterrupt pollDue(long time);
+
+	/** Return all the pending interrupts, in order. */
+	PendingInterrupt[] toArray();
+    }
+
+    /** A pending interrupt queue backed by a <tt>TreeSet</tt>. */
+    private static class TreeSetQueue implements PendingQueue {
+	public void add(PendingInterrupt toOccur) {
+	    pending.add(toOccur);
+	}
+
+	public PendingInterrupt first() {
+	    return pending.isEmpty() ? null : pending.first();
+	}
+
+	public PendingInterrupt pollDue(long time) {
+	    if (pending.isEmpty() || pending.first().time > time)
+		return null;
+
+	    return pending.pollFirst();
+	}
+
+	public PendingInterrupt[] toArray() {
+	    return pending.toArray(new PendingInterrupt[0]);
+	}
+
+	private TreeSet<PendingInterrupt> pending =
+	    new TreeSet<PendingInterrupt>();
+    }
+
+    /**
+     * A pending interrupt queue backed by a binary heap. The keys are kept in
+     * parallel primitive arrays, so comparisons never touch the interrupts
+     * themselves.
+     */
+    private static class HeapQueue implements PendingQueue {
+	public void add(PendingInterrupt toOccur) {
+	    if (size == heap.length) {
+		times = Arrays.copyOf(times, size*2);
+		ids = Arrays.copyOf(ids, size*2);
+		heap = Arrays.copyOf(heap, size*2);
+	    }
+
+	    // sift up from the new leaf
+	    int i = size++;
+	    while (i > 0) {
+		int parent = (i-1)/2;
+		if (!before(toOccur.time, toOccur.id, parent))
+		    break;
+		move(parent, i);
+		i = parent;
+	    }
+	    place(toOccur, i);
+	}
+
+	public PendingInterrupt first() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	public PendingInterrupt pollDue(long time) {
+	    if (size == 0 || times[0] > time)
+		return null;
+
+	    PendingInterrupt first = heap[0];
+	    PendingInterrupt last = heap[--size];
+	    heap[size] = null;
+
+	    if (size == 0)
+		return first;
+	    
+	    // sift the last leaf down from the root
+	    int i = 0;
+	    while (true) {
+		int child = 2*i+1;
+		if (child >= size)
+		    break;
+		if (child+1 < size &&
+		    before(times[child+1], ids[child+1], child))
+		    child++;
+		if (before(last.time, last.id, child))
+		    break;
+		move(child, i);
+		i = child;
+	    }
+	    place(last, i);
+
+	    return first;
+	}
+
+	public PendingInterrupt[] toArray() {
+	    PendingInterrupt[] all = Arrays.copyOf(heap, size);
+	    Arrays.sort(all);
+	    return all;
+	}
+
+	private boolean before(long time, long id, int i) {
+	    return time < times[i] || (time == times[i] && id < ids[i]);
+	}
+
+	private void move(int from, int to) {
+	    times[to] = times[from];
+	    ids[to] = ids[from];
+	    heap[to] = heap[from];
+	}
+
+	private void place(PendingInterrupt toOccur, int i) {
+	    times[i] = toOccur.time;
+	    ids[i] = toOccur.id;
+	    heap[i] = toOccur;
+	}
+
+	private int size = 0;
+	private long[] times = new long[16];
+	private long[] ids = new long[16];
+	private PendingInterrupt[] heap = new PendingInterrupt[16];
+    }
+
+    /**
+     * A pending interrupt queue backed by a hierarchical timing wheel. Level
+     * <i>k</i> has 64 slots, each covering 64<sup><i>k</i></sup> ticks. An
+     * interrupt is filed at the level of the highest base-64 digit in which
+     * its time differs from <tt>base</tt>, and is moved down a level at a
+     * time as <tt>base</tt> catches up with it. All the interrupts in a slot
+     * at level 0 are due at the same time, and are kept in scheduling order.
+     */
+    private static class WheelQueue implements PendingQueue {
+	public void add(PendingInterrupt toOccur) {
+	    Lib.assertTrue(toOccur.time >= base);
+
+	    insert(toOccur);
+
+	    if (firstKnown && (first == null || toOccur.compareTo(first) < 0))
+		first = toOccur;
+	}
+
+	public PendingInterrupt first() {
+	    if (!firstKnown) {
+		first = findFirst();
+		firstKnown = true;
+	    }
+	    return first;
+	}
+
+	public PendingInterrupt pollDue(long time) {
+	    while (true) {
+		int level = lowestLevel();
+		if (level == -1)
+		    return null;
+
+		int slot = Long.numberOfTrailingZeros(occupied[level]);
+		long start = slotStart(level, slot);
+		if (start > time)
+		    return null;
+
+		PendingInterrupt list = slots[level][slot];
+
+		if (level == 0) {
+		    slots[0][slot] = list.next;
+		    if (list.next == null)
+			occupied[0] &= ~(1L << slot);
+
+		    list.next = null;
+		    base = start;
+		    firstKnown = false;
+		    return list;
+		}
+
+		// base has reached this slot, so spread it over lower levels
+		slots[level][slot] = null;
+		occupied[level] &= ~(1L << slot);
+		base = start;
+		
+		while (list != null) {
+		    PendingInterrupt next = list.next;
+		    insert(list);
+		    list = next;
+		}
+	    }
+	}
+
+	public PendingInterrupt[] toArray() {
+	    java.util.ArrayList<PendingInterrupt> all =
+		new java.util.ArrayList<PendingInterrupt>();
+
+	    for (int level=0; level<numLevels; level++) {
+		for (int slot=0; slot<numSlots; slot++) {
+		    for (PendingInterrupt toOccur = slots[level][slot];
+			 toOccur != null; toOccur = toOccur.next)
+			all.add(toOccur);
+		}
+	    }
+
+	    PendingInterrupt[] array = all.toArray(new PendingInterrupt[0]);
+	    Arrays.sort(array);
+	    return array;
+	}
+
+	private void insert(PendingInterrupt toOccur) {
+	    long diff = toOccur.time ^ base;
+	    int level = (diff == 0) ? 0 :
+		(63 - Long.numberOfLeadingZeros(diff)) / slotBits;
+	    int slot = (int) (toOccur.time >>> (level*slotBits)) & (numSlots-1);
+
+	    if (level == 0) {
+		// interrupts due at the same time fire in scheduling order
+		PendingInterrupt prev = null, next = slots[0][slot];
+		while (next != null && next.id < toOccur.id) {
+		    prev = next;
+		    next = next.next;
+		}
+
+		toOccur.next = next;
+		if (prev == null)
+		    slots[0][slot] = toOccur;
+		else
+		    prev.next = toOccur;
+	    }
+	    else {
+		toOccur.next = slots[level][slot];
+		slots[level][slot] = toOccur;
+	    }
+	    
+	    occupied[level] |= 1L << slot;
+	}
+
+	private PendingInterrupt findFirst() {
+	    int level = lowestLevel();
+	    if (level == -1)
+		return null;
+
+	    int slot = Long.numberOfTrailingZeros(occupied[level]);
+	    PendingInterrupt first = slots[level][slot];
+
+	    // higher level slots are not sorted
+	    if (level > 0) {
+		for (PendingInterrupt toOccur = first.next; toOccur != null;
+		     toOccur = toOccur.next) {
+		    if (toOccur.compareTo(first) < 0)
+			first = toOccur;
+		}
+	    }
+
+	    return first;
+	}
+
+	private int lowestLevel() {
+	    for (int level=0; level<numLevels; level++) {
+		if (occupied[level] != 0)
+		    return level;
+	    }
+	    return -1;
+	}
+
+	/** Return the first tick covered by the specified slot. */
+	private long slotStart(int level, int slot) {
+	    int shift = (level+1)*slotBits;
+	    long high = (shift >= 64) ? 0 : (base >>> shift) << shift;
+
+	    return high | ((long) slot << (level*slotBits));
+	}
+
+	private static final int slotBits = 6;
+	private static final int numSlots = 1 << slotBits;
+	private static final int numLevels = (64+slotBits-1) / slotBits;
+
+	private PendingInterrupt[][] slots =
+	    new PendingInterrupt[numLevels][numSlots];
+	/** A bitmap of the non-empty slots at each level. */
+	private long[] occupied = new long[numLevels];
+	/** No pending interrupt is due before this time. */
+	private long base = 0;
+
+	private boolean firstKnown = true;
+	private PendingInterrupt first = null;
     }
     
     private long numPendingInterruptsCreated = 0;
+    /** Interrupts that have fired, kept for reuse. */
+    private PendingInterrupt freeInterrupts = null;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private PendingQueue pending;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +680,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, long count) {
+	    Interrupt.this.tick(inKernelMode, count);
+	}
+
+	public long timeUntilNextInterrupt() {
+	    return Interrupt.this.timeUntilNextInterrupt();
+	}
     }
 }
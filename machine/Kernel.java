@@ -37,6 +37,13 @@ public abstract class Kernel {
      */
     public abstract void run();
 
+    /**
+     * Print any statistics this kernel keeps, after the machine's own. Called
+     * when the machine halts. The default implementation prints nothing.
+     */
+    public void printStats() {
+    }
+
     /**
      * Terminate this kernel. Never returns.
      */
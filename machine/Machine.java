@@ -97,6 +97,8 @@ public final class Machine {
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+	if (Kernel.kernel != null)
+	    Kernel.kernel.printStats();
 	terminate();
     }
 
@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -46,11 +49,56 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	memoryView = ByteBuffer.wrap(mainMemory).order(ByteOrder.LITTLE_ENDIAN);
+	decodeCache = new DecodedInstruction[mainMemory.length/4];
+
+	// memory accesses are only traced with -d p
+	traceMemory = Lib.test(dbgProcessor);
+
+	// the block engine skips the per-instruction tracing and tick output
+	blockEngine = Config.getBoolean("Processor.blockEngine", false) &&
+	    !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble) && !Lib.test(dbgInterrupt);
+	if (blockEngine)
+	    blockCache = new Block[mainMemory.length/4];
 
 	if (usingTLB) {
+	    tlbSize = Config.getInteger("Processor.tlbSize", 4);
+	    Lib.assertTrue(tlbSize > 0, "bad TLB size: " + tlbSize);
+
+	    String organization =
+		Config.getString("Processor.tlbOrganization",
+				 "fullyAssociative");
+	    if (organization.equals("fullyAssociative"))
+		tlbWays = tlbSize;
+	    else if (organization.equals("directMapped"))
+		tlbWays = 1;
+	    else if (organization.equals("setAssociative"))
+		tlbWays = Config.getInteger("Processor.tlbAssociativity", 2);
+	    else
+		Lib.assertNotReached("unknown TLB organization: " +
+				     organization);
+	    
+	    Lib.assertTrue(tlbWays > 0 && tlbSize%tlbWays == 0,
+			   "bad TLB associativity: " + tlbWays);
+	    tlbSets = tlbSize/tlbWays;
+	    
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    // a fully associative TLB is searched through a hash on the vpn
+	    if (tlbSets == 1 && tlbSize > 1) {
+		int numBuckets = 1;
+		while (numBuckets < tlbSize)
+		    numBuckets *= 2;
+
+		tlbBuckets = new int[numBuckets];
+		tlbChain = new int[tlbSize];
+		tlbChainBucket = new int[tlbSize];
+		java.util.Arrays.fill(tlbBuckets, -1);
+		java.util.Arrays.fill(tlbChainBucket, -1);
+	    }
 	}
 	else {
 	    translations = null;
@@ -92,17 +140,137 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+	BlockEngine engine = blockEngine ? new BlockEngine(inst) : null;
 	
 	while (true) {
+	    if (engine != null && engine.run())
+		continue;
+
+	    // run up to the instruction the next interrupt is due after, and
+	    // then charge all their ticks at once
+	    long count = 1;
+	    if (engine == null && !Lib.test(dbgInterrupt))
+		count = instructionsUntilInterrupt();
+
+	    long done = 0;
 	    try {
-		inst.run();
+		for (; done<count; done++)
+		    inst.run();
 	    }
 	    catch (MipsException e) {
+		if (done > 0)
+		    privilege.interrupt.tick(false, done);
+		
 		e.handle();
+		privilege.interrupt.tick(false);
+		continue;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    privilege.interrupt.tick(false, done);
+	}
+    }
+
+    /**
+     * Return the number of user instructions that can run before the next
+     * pending interrupt is due. Interrupts are due after the last of these
+     * instructions, and not before.
+     *
+     * @return	the number of instructions until the next interrupt, or
+     *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+     */
+    private long instructionsUntilInterrupt() {
+	long ticks = privilege.interrupt.timeUntilNextInterrupt();
+	if (ticks == Long.MAX_VALUE)
+	    return ticks;
+
+	return Math.max(1, (ticks + Stats.UserTick-1) / Stats.UserTick);
+    }
+
+    /**
+     * Test that the block engine runs branches that link the same way the
+     * interpreter does. Each test program is written to the start of
+     * physical memory and mapped at virtual address 0, then run once by each
+     * engine from the same registers. The memory, the translations and the
+     * registers are restored afterwards, as are the statistics, so this can
+     * run before the first user process is loaded.
+     */
+    public void selfTest() {
+	int[][] programs = {
+	    // bgezal $a0, 12; addiu $t0, $0, 1; addiu $t1, $0, 2
+	    { 0x04910002, 0x24080001, 0x24090002 },
+	    // bltzal $a0, 12; addiu $t0, $0, 1; addiu $t1, $0, 2
+	    { 0x04900002, 0x24080001, 0x24090002 },
+	};
+	int[] a0Values = { 5, 0, -5 };
+
+	int[] savedRegisters = registers.clone();
+	long savedFetchHits = privilege.stats.numFetchMemoHits;
+	byte[] savedMemory = new byte[pageSize];
+	System.arraycopy(mainMemory, 0, savedMemory, 0, pageSize);
+	TranslationEntry identity = new TranslationEntry(0, 0, true, false,
+							 false, false);
+	TranslationEntry savedTLBEntry = null;
+	TranslationEntry[] savedPageTable = translations;
+	if (usingTLB) {
+	    savedTLBEntry = readTLBEntry(0);
+	    writeTLBEntry(0, identity);
+	}
+	else {
+	    setPageTable(new TranslationEntry[] { identity });
+	}
+
+	Instruction inst = new Instruction();
+	BlockEngine engine = new BlockEngine(inst);
+
+	for (int i=0; i<programs.length; i++) {
+	    for (int j=0; j<programs[i].length; j++)
+		memoryView.putInt(j*4, programs[i][j]);
+
+	    for (int k=0; k<a0Values.length; k++) {
+		int[][] results = new int[2][];
+		for (int run=0; run<2; run++) {
+		    finishLoad();
+		    finishLoad();
+		    java.util.Arrays.fill(registers, 0);
+		    registers[regA0] = a0Values[k];
+		    registers[regPC] = 0;
+		    registers[regNextPC] = 4;
+
+		    // the branch and its delay slot
+		    try {
+			if (run == 0) {
+			    inst.run();
+			    inst.run();
+			}
+			else {
+			    Block block = engine.compile(0, 0);
+			    block.ops[0].run();
+			    block.ops[1].run();
+			    engine.advance(block, 2);
+			}
+		    }
+		    catch (MipsException e) {
+			Lib.assertNotReached("exception in Processor test");
+		    }
+		    results[run] = registers.clone();
+		}
+
+		Lib.assertTrue(results[0][regRA] == 8 && results[0][8] == 1);
+		Lib.assertTrue(java.util.Arrays.equals(results[0], results[1]),
+			       "block engine differs from interpreter on " +
+			       "program " + i + " with $a0 = " + a0Values[k]);
+	    }
 	}
+
+	System.arraycopy(savedMemory, 0, mainMemory, 0, pageSize);
+	if (usingTLB)
+	    writeTLBEntry(0, savedTLBEntry);
+	else
+	    setPageTable(savedPageTable);
+	System.arraycopy(savedRegisters, 0, registers, 0, numUserRegisters);
+	finishLoad();
+	finishLoad();
+	privilege.stats.numFetchMemoHits = savedFetchHits;
     }
 
     /**
@@ -175,6 +343,9 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+
+	fetchMemo.invalidate();
+	dataMemo.invalidate();
     }
 
     /**
@@ -188,6 +359,33 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of TLB entries that can hold the translation for any
+     * one virtual page. This is the TLB size if the TLB is fully associative,
+     * and 1 if it is direct-mapped.
+     *
+     * @return	the associativity of this processor's TLB.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the index of the first TLB entry that can hold the translation
+     * for the specified virtual page. The translation can be placed in any of
+     * the <tt>getTLBAssociativity()</tt> entries starting at this index.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the first TLB index in the set that <i>vpn</i> maps to.
+     */
+    public int getTLBSetIndex(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return (int) (((long) vpn & 0xFFFFFFFFL) % tlbSets) * tlbWays;
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -195,18 +393,32 @@ public final class Processor {
      * @return	the contents of the specified TLB entry.
      */
     public TranslationEntry readTLBEntry(int number) {
+	TranslationEntry entry = new TranslationEntry();
+	readTLBEntry(number, entry);
+	return entry;
+    }
+
+    /**
+     * Copy the specified TLB entry into <i>entry</i>, without allocating a
+     * new <tt>TranslationEntry</tt>.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	the entry to receive the contents of the TLB entry.
+     */
+    public void readTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	return new TranslationEntry(translations[number]);
+	copyEntry(translations[number], entry);
     }
 
     /**
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative, the location of an entry within the
+     * TLB does not affect anything. Otherwise, a valid entry must be placed in
+     * the set its virtual page maps to (see <tt>getTLBSetIndex()</tt>).
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +427,97 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	translations[number] = new TranslationEntry(entry);
+	if (entry.valid && tlbSets > 1) {
+	    int first = getTLBSetIndex(entry.vpn);
+	    Lib.assertTrue(number >= first && number < first+tlbWays,
+			   "TLB entry for vpn " + entry.vpn +
+			   " written outside its set");
+	}
+
+	if (tlbBuckets != null)
+	    unhashTLBEntry(number);
+
+	copyEntry(entry, translations[number]);
+
+	if (tlbBuckets != null && entry.valid)
+	    hashTLBEntry(number);
+
+	fetchMemo.invalidate();
+	dataMemo.invalidate();
+    }
+
+    private static void copyEntry(TranslationEntry from, TranslationEntry to) {
+	to.vpn = from.vpn;
+	to.ppn = from.ppn;
+	to.valid = from.valid;
+	to.readOnly = from.readOnly;
+	to.used = from.used;
+	to.dirty = from.dirty;
+    }
+
+    /**
+     * Add a valid TLB entry to the hash chain for its vpn. Chains are kept
+     * sorted by index, so that the first match is the same entry a linear
+     * search would find.
+     */
+    private void hashTLBEntry(int number) {
+	int bucket = translations[number].vpn & (tlbBuckets.length-1);
+
+	int prev = -1, next = tlbBuckets[bucket];
+	while (next != -1 && next < number) {
+	    prev = next;
+	    next = tlbChain[next];
+	}
+
+	tlbChain[number] = next;
+	if (prev == -1)
+	    tlbBuckets[bucket] = number;
+	else
+	    tlbChain[prev] = number;
+
+	tlbChainBucket[number] = bucket;
+    }
+
+    private void unhashTLBEntry(int number) {
+	int bucket = tlbChainBucket[number];
+	if (bucket == -1)
+	    return;
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	}
+	else {
+	    int prev = tlbBuckets[bucket];
+	    while (tlbChain[prev] != number)
+		prev = tlbChain[prev];
+	    tlbChain[prev] = tlbChain[number];
+	}
+
+	tlbChainBucket[number] = -1;
+    }
+
+    /**
+     * Find the valid TLB entry for the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching entry, or <tt>null</tt> on a TLB miss.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	if (tlbBuckets != null) {
+	    for (int i=tlbBuckets[vpn & (tlbBuckets.length-1)]; i != -1;
+		 i=tlbChain[i]) {
+		if (translations[i].vpn == vpn)
+		    return translations[i];
+	    }
+	    return null;
+	}
+
+	int first = getTLBSetIndex(vpn);
+	for (int i=first; i<first+tlbWays; i++) {
+	    if (translations[i].valid && translations[i].vpn == vpn)
+		return translations[i];
+	}
+	return null;
     }
 
     /**
@@ -294,7 +596,23 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	return translate(vaddr, size, writing, dataMemo);
+    }
+
+    /**
+     * Translate a virtual address into a physical address, as above, first
+     * trying the entry remembered by the specified translation memo.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	memo	the memo to consult and update.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translate(int vaddr, int size, boolean writing,
+			  TranslationMemo memo) throws MipsException {
+	if (traceMemory)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -308,10 +626,14 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
-	TranslationEntry entry = null;
+	TranslationEntry entry = memo.lookup(vpn);
 
+	// try the page this memo translated last
+	if (entry != null) {
+	    memo.countHit();
+	}
 	// if not using a TLB, then the vpn is an index into the table
-	if (!usingTLB) {
+	else if (!usingTLB) {
 	    if (translations == null || vpn >= translations.length ||
 		translations[vpn] == null ||
 		!translations[vpn].valid) {
@@ -321,20 +643,17 @@ public final class Processor {
 	    }
 
 	    entry = translations[vpn];
+	    memo.remember(vpn, entry);
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB entries vpn can be in
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
 		throw new MipsException(exceptionTLBMiss, vaddr);
 	    }
+	    memo.remember(vpn, entry);
 	}
 
 	// check if trying to write a read-only page
@@ -357,7 +676,7 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
@@ -372,16 +691,15 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				   size);
+	int value = load(translate(vaddr, size, false), size);
 
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +717,80 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (traceMemory)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+
+	store(paddr, size, value);
+
+	invalidateDecoded(paddr);
+    }
+
+    /**
+     * Read <i>size</i> (1, 2, or 4) bytes of physical memory at the specified
+     * aligned address. Narrow values are sign-extended, as with
+     * <tt>Lib.bytesToInt()</tt>.
+     */
+    private int load(int paddr, int size) {
+	switch (size) {
+	case 4:
+	    return memoryView.getInt(paddr);
+	case 2:
+	    return memoryView.getShort(paddr);
+	default:
+	    return mainMemory[paddr];
+	}
+    }
+
+    /**
+     * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i> to
+     * physical memory at the specified aligned address.
+     */
+    private void store(int paddr, int size, int value) {
+	switch (size) {
+	case 4:
+	    memoryView.putInt(paddr, value);
+	    break;
+	case 2:
+	    memoryView.putShort(paddr, (short) value);
+	    break;
+	default:
+	    mainMemory[paddr] = (byte) value;
+	    break;
+	}
+    }
+
+    /**
+     * Discard the cached decoding of the instruction word containing the
+     * specified physical address.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    private void invalidateDecoded(int paddr) {
+	DecodedInstruction decoded = decodeCache[paddr/4];
+	if (decoded != null)
+	    decoded.valid = false;
+    }
+
+    /**
+     * Discard the cached decodings of every instruction in the specified
+     * physical page. Called whenever the page is reloaded.
+     *
+     * @param	ppn	the physical page that was overwritten.
+     */
+    void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	int first = ppn*pageSize/4;
+	for (int i=first; i<first+pageSize/4; i++) {
+	    if (decodeCache[i] != null)
+		decodeCache[i].valid = false;
+	}
     }
 
     /**
@@ -541,6 +924,19 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /** Number of sets in the TLB. */
+    private int tlbSets;
+    /**
+     * For a fully associative TLB, the first TLB index in each hash bucket,
+     * or -1 if the bucket is empty.
+     */
+    private int[] tlbBuckets = null;
+    /** The next TLB index in the same bucket, or -1 at the end of a chain. */
+    private int[] tlbChain;
+    /** The bucket each TLB index is chained in, or -1 if it is not. */
+    private int[] tlbChainBucket;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -555,6 +951,27 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /** The last page translated by an instruction fetch. */
+    private TranslationMemo fetchMemo = new TranslationMemo(true);
+    /** The last page translated by a load or store. */
+    private TranslationMemo dataMemo = new TranslationMemo(false);
+
+    /** A little-endian view of main memory, for word and halfword access. */
+    private ByteBuffer memoryView;
+    /** <tt>true</tt> if every memory access should be traced. */
+    private boolean traceMemory;
+    /** Decoded instructions, indexed by physical word address. */
+    private DecodedInstruction[] decodeCache;
+
+    /** <tt>true</tt> if user code is run by the basic block engine. */
+    private boolean blockEngine;
+    /** Compiled basic blocks, indexed by physical address of the first word. */
+    private Block[] blockCache;
+    /**
+     * The value of the nextPC register after the delay slot of the branch
+     * most recently run by the block engine.
+     */
+    private int blockBranchTarget;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -562,6 +979,7 @@ public final class Processor {
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgInterrupt = 'i';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
@@ -626,63 +1044,53 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (traceMemory)
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    paddr = translate(registers[regPC], 4, false, fetchMemo);
+	    value = memoryView.getInt(paddr);
+
+	    if (traceMemory)
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    // the register-independent fields come from the decode cache; the
+	    // raw word is compared too, since the kernel can write memory
+	    // directly through getMemory()
+	    DecodedInstruction decoded = decodeCache[paddr/4];
+	    if (decoded == null) {
+		decoded = new DecodedInstruction();
+		decodeCache[paddr/4] = decoded;
 	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    if (!decoded.valid || decoded.value != value)
+		decoded.decode(value);
+	    
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
@@ -1052,7 +1460,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1471,704 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * Remembers the last page translated for one kind of access, so that
+     * consecutive accesses to the same page can skip the page table or TLB
+     * search. The entry itself is still consulted on every access, so changes
+     * the kernel makes to its fields take effect immediately.
+     */
+    private class TranslationMemo {
+	TranslationMemo(boolean fetch) {
+	    this.fetch = fetch;
+	}
+	
+	/**
+	 * Return the remembered entry if it still translates <i>vpn</i>, or
+	 * <tt>null</tt> if the full lookup is needed.
+	 */
+	TranslationEntry lookup(int vpn) {
+	    if (vpn != this.vpn || entry == null || !entry.valid)
+		return null;
+
+	    // the kernel may have replaced the page table entry
+	    if (!usingTLB && translations[vpn] != entry)
+		return null;
+
+	    return entry;
+	}
+
+	void remember(int vpn, TranslationEntry entry) {
+	    this.vpn = vpn;
+	    this.entry = entry;
+	}
+
+	void invalidate() {
+	    entry = null;
+	}
+
+	void countHit() {
+	    if (fetch)
+		privilege.stats.numFetchMemoHits++;
+	    else
+		privilege.stats.numDataMemoHits++;
+	}
+
+	private boolean fetch;
+	private int vpn;
+	private TranslationEntry entry = null;
+    }
+
+    /**
+     * A compiled basic block: a run of instructions within a single page that
+     * ends after the delay slot of a branch or jump, at a syscall, or at an
+     * invalid instruction.
+     */
+    private static class Block {
+	Block(int pc, int[] words, Op[] ops, int branchIndex) {
+	    this.pc = pc;
+	    this.words = words;
+	    this.ops = ops;
+	    this.branchIndex = branchIndex;
+	}
+
+	/**
+	 * Test whether this block still describes the code at the specified
+	 * virtual and physical addresses.
+	 */
+	boolean matches(int pc, ByteBuffer memory, int paddr) {
+	    if (pc != this.pc)
+		return false;
+
+	    for (int i=0; i<words.length; i++) {
+		if (memory.getInt(paddr + i*4) != words[i])
+		    return false;
+	    }
+
+	    return true;
+	}
+
+	/** The virtual address of the first instruction. */
+	final int pc;
+	/** The instruction words the block was compiled from. */
+	final int[] words;
+	final Op[] ops;
+	/** The index of the branch or jump in this block, or -1 if none. */
+	final int branchIndex;
+    }
+
+    /** A single compiled instruction. */
+    private abstract static class Op {
+	Op(int pc) {
+	    this.pc = pc;
+	}
+
+	abstract void run() throws MipsException;
+
+	/** The virtual address of this instruction. */
+	final int pc;
+    }
+
+    /**
+     * Runs user code a basic block at a time. Each block is compiled once
+     * into a chain of <tt>Op</tt>s specialized on the instruction's fields,
+     * and is rerun without going back through the fetch, decode, execute,
+     * and writeBack stages of <tt>Instruction</tt>.
+     *
+     * <p>
+     * Simulated time advances exactly as it would for the interpreter: a
+     * block is cut short so that it never runs past the tick at which the
+     * next interrupt is due, and the ticks of all the instructions it ran are
+     * then charged at once.
+     */
+    private class BlockEngine {
+	BlockEngine(Instruction inst) {
+	    this.inst = inst;
+	}
+
+	/**
+	 * Run the basic block starting at the current PC, and advance the
+	 * simulated time accordingly.
+	 *
+	 * @return	<tt>false</tt> if the instruction at the current PC must be
+	 *		run by the interpreter instead.
+	 */
+	boolean run() {
+	    int pc = registers[regPC];
+
+	    // blocks never start in a delay slot
+	    if (registers[regNextPC] != pc+4)
+		return false;
+
+	    int paddr;
+	    try {
+		paddr = translate(pc, 4, false, fetchMemo);
+	    }
+	    catch (MipsException e) {
+		e.handle();
+		privilege.interrupt.tick(false);
+		return true;
+	    }
+
+	    Block block = blockCache[paddr/4];
+	    if (block == null || !block.matches(pc, memoryView, paddr)) {
+		block = compile(pc, paddr);
+		blockCache[paddr/4] = block;
+	    }
+
+	    // stop at the instruction whose tick the next interrupt is due on
+	    long limit = instructionsUntilInterrupt();
+	    
+	    execute(block, (int) Math.min(limit, block.ops.length));
+	    return true;
+	}
+
+	private void execute(Block block, int count) {
+	    Op[] ops = block.ops;
+	    int i = 0;
+
+	    try {
+		for (; i<count; i++)
+		    ops[i].run();
+	    }
+	    catch (MipsException e) {
+		// leave the PC pointing at the faulting instruction
+		registers[regPC] = block.pc + i*4;
+		if (block.branchIndex >= 0 && i == block.branchIndex+1)
+		    registers[regNextPC] = blockBranchTarget;
+		else
+		    registers[regNextPC] = block.pc + i*4 + 4;
+
+		if (i > 0)
+		    privilege.interrupt.tick(false, i);
+
+		e.handle();
+		privilege.interrupt.tick(false);
+		return;
+	    }
+
+	    advance(block, count);
+	    privilege.interrupt.tick(false, count);
+	}
+
+	/**
+	 * Point the PC past the first <i>count</i> instructions of a block,
+	 * which have run.
+	 */
+	private void advance(Block block, int count) {
+	    int last = count-1;
+	    if (last == block.branchIndex+1 && block.branchIndex >= 0) {
+		registers[regPC] = blockBranchTarget;
+		registers[regNextPC] = blockBranchTarget+4;
+	    }
+	    else if (last == block.branchIndex) {
+		registers[regPC] = block.pc + last*4 + 4;
+		registers[regNextPC] = blockBranchTarget;
+	    }
+	    else {
+		registers[regPC] = block.pc + last*4 + 4;
+		registers[regNextPC] = block.pc + last*4 + 8;
+	    }
+	}
+
+	private Block compile(int pc, int paddr) {
+	    java.util.ArrayList<Op> ops = new java.util.ArrayList<Op>();
+	    int[] words = new int[pageSize/4];
+	    int branchIndex = -1;
+
+	    DecodedInstruction decoded = new DecodedInstruction();
+
+	    for (int vaddr=pc; ; vaddr+=4, paddr+=4) {
+		int word = memoryView.getInt(paddr);
+		decoded.decode(word);
+
+		boolean delaySlot = (branchIndex >= 0);
+		boolean branch = Lib.test(Mips.BRANCH, decoded.flags);
+		boolean trap = (decoded.operation == Mips.SYSCALL ||
+				decoded.operation == Mips.UNIMPL ||
+				decoded.operation == Mips.INVALID);
+
+		// leave odd delay slots to the interpreter
+		if (delaySlot && (branch || trap))
+		    break;
+
+		words[ops.size()] = word;
+		ops.add(compile(decoded, vaddr, delaySlot));
+
+		if (delaySlot || trap)
+		    break;
+
+		if (branch)
+		    branchIndex = ops.size()-1;
+
+		if ((paddr+4) % pageSize == 0)
+		    break;
+	    }
+
+	    int[] blockWords = new int[ops.size()];
+	    System.arraycopy(words, 0, blockWords, 0, blockWords.length);
+
+	    return new Block(pc, blockWords, ops.toArray(new Op[0]),
+			     branchIndex);
+	}
+
+	/**
+	 * Compile a single instruction. The generated code mirrors
+	 * <tt>Instruction</tt> exactly: source registers are read before the
+	 * delayed load in progress completes, and anything without a special
+	 * case is handed back to the interpreter.
+	 */
+	private Op compile(DecodedInstruction d, final int pc,
+			   final boolean delaySlot) {
+	    final int rs = d.rs, rt = d.rt, rd = d.rd, sh = d.sh;
+	    final int imm = d.imm, uimm = d.imm & 0xFFFF;
+	    final int dstReg = d.dstReg, size = d.size;
+	    final boolean unsigned = Lib.test(Mips.UNSIGNED, d.flags);
+	    final boolean srcImm = Lib.test(Mips.SRC2IMM, d.flags);
+	    final boolean srcShift = Lib.test(Mips.SRC1SH, d.flags);
+	    final boolean overflow = Lib.test(Mips.OVERFLOW, d.flags);
+
+	    // writes to r0 are dropped, so such instructions only finish loads
+	    if (Lib.test(Mips.DST, d.flags) && dstReg == 0 && !overflow &&
+		!Lib.test(Mips.BRANCH, d.flags)) {
+		switch (d.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.SLT:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.LUI:
+		case Mips.MFLO:
+		case Mips.MFHI:
+		    return new Op(pc) {
+			void run() {
+			    finishLoad();
+			}
+		    };
+		}
+	    }
+
+	    switch (d.operation) {
+	    case Mips.ADD:
+		if (overflow) {
+		    return new Op(pc) {
+			void run() throws MipsException {
+			    long dst = (long) registers[rs] +
+				(srcImm ? imm : registers[rt]);
+			    if (Lib.test(dst,31) != Lib.test(dst,32))
+				throw new MipsException(exceptionOverflow);
+			    finishLoad();
+			    if (dstReg != 0)
+				registers[dstReg] = (int) dst;
+			}
+		    };
+		}
+		if (srcImm) {
+		    return new Op(pc) {
+			void run() {
+			    int dst = registers[rs] + imm;
+			    finishLoad();
+			    registers[dstReg] = dst;
+			}
+		    };
+		}
+		return new Op(pc) {
+		    void run() {
+			int dst = registers[rs] + registers[rt];
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.SUB:
+		if (overflow) {
+		    return new Op(pc) {
+			void run() throws MipsException {
+			    long dst = (long) registers[rs] - registers[rt];
+			    if (Lib.test(dst,31) != Lib.test(dst,32))
+				throw new MipsException(exceptionOverflow);
+			    finishLoad();
+			    if (dstReg != 0)
+				registers[dstReg] = (int) dst;
+			}
+		    };
+		}
+		return new Op(pc) {
+		    void run() {
+			int dst = registers[rs] - registers[rt];
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.AND:
+		if (srcImm) {
+		    return new Op(pc) {
+			void run() {
+			    int dst = registers[rs] & uimm;
+			    finishLoad();
+			    registers[dstReg] = dst;
+			}
+		    };
+		}
+		return new Op(pc) {
+		    void run() {
+			int dst = registers[rs] & registers[rt];
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.OR:
+		if (srcImm) {
+		    return new Op(pc) {
+			void run() {
+			    int dst = registers[rs] | uimm;
+			    finishLoad();
+			    registers[dstReg] = dst;
+			}
+		    };
+		}
+		return new Op(pc) {
+		    void run() {
+			int dst = registers[rs] | registers[rt];
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.XOR:
+		if (srcImm) {
+		    return new Op(pc) {
+			void run() {
+			    int dst = registers[rs] ^ uimm;
+			    finishLoad();
+			    registers[dstReg] = dst;
+			}
+		    };
+		}
+		return new Op(pc) {
+		    void run() {
+			int dst = registers[rs] ^ registers[rt];
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.NOR:
+		return new Op(pc) {
+		    void run() {
+			int dst = ~(registers[rs] | registers[rt]);
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.SLT:
+		// the unsigned forms compare zero-extended operands, including
+		// the immediate of sltiu
+		if (unsigned) {
+		    final long src2 = uimm;
+		    return new Op(pc) {
+			void run() {
+			    long src1 = registers[rs] & 0xFFFFFFFFL;
+			    int dst = (src1 < (srcImm ? src2 :
+					       registers[rt] & 0xFFFFFFFFL))
+				? 1 : 0;
+			    finishLoad();
+			    registers[dstReg] = dst;
+			}
+		    };
+		}
+		return new Op(pc) {
+		    void run() {
+			int dst = (registers[rs] < (srcImm ? imm : registers[rt]))
+			    ? 1 : 0;
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.SLL:
+		return new Op(pc) {
+		    void run() {
+			int shift = srcShift ? sh : (registers[rs] & 0x1F);
+			int dst = registers[rt] << shift;
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.SRA:
+		return new Op(pc) {
+		    void run() {
+			int shift = srcShift ? sh : (registers[rs] & 0x1F);
+			int dst = registers[rt] >> shift;
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.SRL:
+		// same as Instruction: shifts the sign-extended 64-bit operand
+		return new Op(pc) {
+		    void run() {
+			int shift = srcShift ? sh : (registers[rs] & 0x1F);
+			int dst = (int) (((long) registers[rt]) >>> shift);
+			finishLoad();
+			registers[dstReg] = dst;
+		    }
+		};
+
+	    case Mips.LUI:
+		return new Op(pc) {
+		    void run() {
+			finishLoad();
+			registers[dstReg] = uimm << 16;
+		    }
+		};
+
+	    case Mips.MULT:
+		return new Op(pc) {
+		    void run() {
+			long dst;
+			if (unsigned)
+			    dst = (registers[rs] & 0xFFFFFFFFL) *
+				(registers[rt] & 0xFFFFFFFFL);
+			else
+			    dst = (long) registers[rs] * registers[rt];
+			registers[regLo] = (int) Lib.extract(dst, 0, 32);
+			registers[regHi] = (int) Lib.extract(dst, 32, 32);
+			finishLoad();
+		    }
+		};
+
+	    case Mips.DIV:
+		return new Op(pc) {
+		    void run() throws MipsException {
+			long src1 = registers[rs], src2 = registers[rt];
+			if (unsigned) {
+			    src1 &= 0xFFFFFFFFL;
+			    src2 &= 0xFFFFFFFFL;
+			}
+			try {
+			    registers[regLo] = (int) (src1 / src2);
+			    registers[regHi] = (int) (src1 % src2);
+			    if (registers[regLo]*src2 + registers[regHi] != src1)
+				throw new ArithmeticException();
+			}
+			catch (ArithmeticException e) {
+			    throw new MipsException(exceptionOverflow);
+			}
+			finishLoad();
+		    }
+		};
+
+	    case Mips.MFLO:
+		return new Op(pc) {
+		    void run() {
+			finishLoad();
+			registers[dstReg] = registers[regLo];
+		    }
+		};
+
+	    case Mips.MFHI:
+		return new Op(pc) {
+		    void run() {
+			finishLoad();
+			registers[dstReg] = registers[regHi];
+		    }
+		};
+
+	    case Mips.MTLO:
+		return new Op(pc) {
+		    void run() {
+			registers[regLo] = registers[rs];
+			finishLoad();
+		    }
+		};
+
+	    case Mips.MTHI:
+		return new Op(pc) {
+		    void run() {
+			registers[regHi] = registers[rs];
+			finishLoad();
+		    }
+		};
+
+	    case Mips.BEQ:
+	    case Mips.BNE:
+	    case Mips.BLEZ:
+	    case Mips.BGTZ:
+	    case Mips.BLTZ:
+	    case Mips.BGEZ:
+		final int operation = d.operation;
+		final int jtarget = pc+4 + (imm<<2);
+		final boolean branchLink = Lib.test(Mips.LINK, d.flags);
+		return new Op(pc) {
+		    void run() {
+			int src1 = registers[rs], src2 = registers[rt];
+			boolean branch;
+			switch (operation) {
+			case Mips.BEQ:
+			    branch = (src1 == src2);
+			    break;
+			case Mips.BNE:
+			    branch = (src1 != src2);
+			    break;
+			case Mips.BLEZ:
+			    branch = (src1 <= 0);
+			    break;
+			case Mips.BGTZ:
+			    branch = (src1 > 0);
+			    break;
+			case Mips.BLTZ:
+			    branch = (src1 < 0);
+			    break;
+			default:
+			    branch = (src1 >= 0);
+			    break;
+			}
+			finishLoad();
+			// bltzal and bgezal link whether or not they branch
+			if (branchLink)
+			    registers[dstReg] = pc+8;
+			blockBranchTarget = branch ? jtarget : pc+8;
+		    }
+		};
+
+	    case Mips.JUMP:
+		final boolean link = Lib.test(Mips.LINK, d.flags);
+		if (d.format == Mips.JFMT) {
+		    final int target = ((pc+4)&0xF0000000) | (d.target<<2);
+		    return new Op(pc) {
+			void run() {
+			    finishLoad();
+			    if (link)
+				registers[dstReg] = pc+8;
+			    blockBranchTarget = target;
+			}
+		    };
+		}
+		return new Op(pc) {
+		    void run() {
+			int target = registers[rs];
+			finishLoad();
+			if (link && dstReg != 0)
+			    registers[dstReg] = pc+8;
+			blockBranchTarget = target;
+		    }
+		};
+
+	    case Mips.LOAD:
+		final int offset = unsigned ? uimm : imm;
+		return new Op(pc) {
+		    void run() throws MipsException {
+			int value = readMem(registers[rs] + offset, size);
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+		    }
+		};
+
+	    case Mips.STORE:
+		return new Op(pc) {
+		    void run() throws MipsException {
+			int value = registers[rt];
+			writeMem(registers[rs] + imm, size, value);
+			finishLoad();
+		    }
+		};
+
+	    case Mips.SYSCALL:
+		return new Op(pc) {
+		    void run() throws MipsException {
+			throw new MipsException(exceptionSyscall);
+		    }
+		};
+
+	    default:
+		return new Op(pc) {
+		    void run() throws MipsException {
+			registers[regPC] = pc;
+			registers[regNextPC] =
+			    delaySlot ? blockBranchTarget : pc+4;
+			inst.run();
+		    }
+		};
+	    }
+	}
+
+	private Instruction inst;
+    }
+
+    /**
+     * The register-independent part of a decoded instruction. One of these is
+     * cached for each word of physical memory that has been executed.
+     */
+    private static class DecodedInstruction {
+	void decode(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    valid = true;
+	}
+
+	boolean valid = false;
+	int value, op, rs, rt, rd, sh, func, target, imm;
+	int operation, format, flags;
+	String name;
+	int size, dstReg;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -27,6 +27,8 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	System.out.println("Translation memo hits: fetch " + numFetchMemoHits
+			   + ", data " + numDataMemoHits);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -57,6 +59,16 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The total number of instruction fetches translated using the page
+     * translated by the previous fetch.
+     */
+    public long numFetchMemoHits = 0;
+    /**
+     * The total number of loads and stores translated using the page
+     * translated by the previous load or store.
+     */
+    public long numDataMemoHits = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
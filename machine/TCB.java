@@ -6,6 +6,11 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +19,17 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * <tt>TCB.backend</tt> selects the kind of JVM thread used: <tt>platform</tt>
+ * (the default) for ordinary threads, or <tt>virtual</tt> for virtual
+ * threads, which are far cheaper to create and switch between, and so allow
+ * many more TCBs to run at once. Virtual threads require Java 21.
+ * <tt>continuation</tt> runs every TCB as a continuation on the main Java
+ * thread, so that a context switch is just a yield and a resume. This needs
+ * <tt>--add-exports java.base/jdk.internal.vm=ALL-UNNAMED</tt>, and falls
+ * back to virtual threads without it.
+ * <tt>TCB.maxThreads</tt> overrides the limit on running TCBs.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +56,95 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String backend = Config.getString("TCB.backend", "platform");
+	if (backend.equals("continuation")) {
+	    if (!findContinuations()) {
+		System.out.print(" (continuations unavailable)");
+		backend = "virtual";
+	    }
+	}
+	
+	if (backend.equals("virtual")) {
+	    if (findVirtualThreadBuilder())
+		startCarrierThread();
+	    else
+		System.out.print(" (virtual threads unavailable)");
+	}
+	else if (!backend.equals("continuation")) {
+	    Lib.assertTrue(backend.equals("platform"),
+			   "unknown TCB backend: " + backend);
+	}
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					virtualThreadBuilder != null ||
+					continuationScope != null ?
+					maxVirtualThreads : maxThreads);
+    }
+
+    /**
+     * Look up <tt>jdk.internal.vm.Continuation</tt>. Method handles are used
+     * so that Nachos still compiles on older JVMs, and so that a context
+     * switch costs no more than a direct call.
+     *
+     * @return	<tt>true</tt> if continuations are accessible.
+     */
+    private static boolean findContinuations() {
+	try {
+	    Class<?> scopeClass =
+		Class.forName("jdk.internal.vm.ContinuationScope");
+	    Class<?> continuationClass =
+		Class.forName("jdk.internal.vm.Continuation");
+	    MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	    newContinuation = lookup
+		.findConstructor(continuationClass,
+				 MethodType.methodType(void.class, scopeClass,
+						       Runnable.class))
+		.asType(MethodType.methodType(Object.class, Object.class,
+					      Runnable.class));
+	    runContinuation = lookup
+		.findVirtual(continuationClass, "run",
+			     MethodType.methodType(void.class))
+		.asType(MethodType.methodType(void.class, Object.class));
+	    yieldContinuation = lookup
+		.findStatic(continuationClass, "yield",
+			    MethodType.methodType(boolean.class, scopeClass))
+		.asType(MethodType.methodType(boolean.class, Object.class));
+
+	    continuationScope = lookup
+		.findConstructor(scopeClass,
+				 MethodType.methodType(void.class,
+						       String.class))
+		.invoke("nachos");
+	    return true;
+	}
+	catch (Throwable e) {
+	    continuationScope = null;
+	    return false;
+	}
+    }
+
+    /**
+     * Look up a <tt>Thread.Builder</tt> for virtual threads. Reflection is
+     * used so that Nachos still compiles and runs on older JVMs.
+     *
+     * @return	<tt>true</tt> if this JVM supports virtual threads.
+     */
+    private static boolean findVirtualThreadBuilder() {
+	try {
+	    Method unstarted =
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	    virtualThreadBuilder =
+		Thread.class.getMethod("ofVirtual").invoke(null);
+	    newVirtualThread = unstarted;
+	    return true;
+	}
+	catch (Exception e) {
+	    virtualThreadBuilder = null;
+	    return false;
+	}
     }
     
     /**
@@ -66,7 +171,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,7 +190,21 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && continuationScope != null) {
+	    /* Starting a continuation is much like starting a Java thread,
+	     * except that it's run by the loop in the first TCB's start().
+	     */
+	    javaThread = Thread.currentThread();
+	    continuation = newContinuation(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+
+	    currentTCB.running = false;
+
+	    nextTCB = this;
+	    currentTCB.waitForInterrupt();
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
 	     * to run it. Creating Java threads is a privileged operation.
 	     */
@@ -94,7 +213,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -108,6 +227,43 @@ public final class TCB {
 	    this.javaThread.start();
 	    currentTCB.waitForInterrupt();
 	}
+	else if (continuationScope != null) {
+	    /* The current Java thread becomes the carrier for every TCB. It
+	     * runs whichever TCB was last interrupted until that TCB waits,
+	     * and never returns; Nachos exits from within some TCB.
+	     */
+	    javaThread = Thread.currentThread();
+	    continuation = newContinuation(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+
+	    nextTCB = this;
+	    while (true) {
+		TCB tcb = nextTCB;
+		Lib.assertTrue(tcb != null);
+		nextTCB = null;
+
+		try {
+		    runContinuation.invokeExact(tcb.continuation);
+		}
+		catch (Throwable e) {
+		    rethrow(e);
+		}
+	    }
+	}
+	else if (virtualThreadBuilder != null) {
+	    /* The first TCB gets a virtual thread too, so that all TCBs share
+	     * the one carrier thread. Virtual threads are daemons, so the
+	     * current Java thread must stay alive until Nachos exits.
+	     */
+	    javaThread = newThread(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+	    javaThread.start();
+
+	    while (true)
+		LockSupport.park();
+	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
 	     * thread to run it; we just steal the current Java thread.
@@ -207,6 +363,65 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Limit virtual threads to a single carrier thread, and start it. Only
+     * one TCB runs at a time, so one carrier is enough, and starting it now
+     * means no carrier threads need to be created once the security manager
+     * is enabled.
+     */
+    private static void startCarrierThread() {
+	String[] properties = { "jdk.virtualThreadScheduler.parallelism",
+				"jdk.virtualThreadScheduler.maxPoolSize" };
+	for (int i=0; i<properties.length; i++) {
+	    if (System.getProperty(properties[i]) == null)
+		System.setProperty(properties[i], "1");
+	}
+
+	Thread thread = newThread(new Runnable() {
+		public void run() { }
+	    });
+	thread.start();
+
+	try {
+	    thread.join();
+	}
+	catch (InterruptedException e) {
+	}
+    }
+
+    private static Object newContinuation(Runnable target) {
+	try {
+	    return (Object) newContinuation.invokeExact(continuationScope,
+							target);
+	}
+	catch (Throwable e) {
+	    rethrow(e);
+	    return null;
+	}
+    }
+
+    private static void rethrow(Throwable e) {
+	if (e instanceof RuntimeException)
+	    throw (RuntimeException) e;
+	else if (e instanceof Error)
+	    throw (Error) e;
+	else
+	    throw new RuntimeException(e);
+    }
+
+    private static Thread newThread(Runnable target) {
+	if (virtualThreadBuilder == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) newVirtualThread.invoke(virtualThreadBuilder,
+						    target);
+	}
+	catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -286,11 +501,39 @@ public final class TCB {
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * Virtual threads park instead, since waiting on a monitor would pin
+     * their carrier thread. Continuations yield back to the loop in the first
+     * TCB's <tt>start()</tt>, which resumes whichever TCB was interrupted.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (continuationScope != null) {
+	    while (!running) {
+		boolean yielded = false;
+		try {
+		    yielded = (boolean)
+			yieldContinuation.invokeExact(continuationScope);
+		}
+		catch (Throwable e) {
+		    rethrow(e);
+		}
+		Lib.assertTrue(yielded, "TCB is pinned to its carrier");
+	    }
+	    return;
+	}
+
+	if (virtualThreadBuilder != null) {
+	    while (!running)
+		LockSupport.park(this);
+	    return;
+	}
+
+	synchronized (this) {
+	    while (!running) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
 	}
     }
 
@@ -300,9 +543,23 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (continuationScope != null) {
+	    running = true;
+	    nextTCB = this;
+	    return;
+	}
+
+	if (virtualThreadBuilder != null) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	    return;
+	}
+
+	synchronized (this) {
+	    running = true;
+	    notify();
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +589,36 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The default maximum number of started, non-destroyed TCB's when they
+     * run on virtual threads.
+     */
+    public static final int maxVirtualThreads = 100000;
+
+    /**
+     * The maximum number of started, non-destroyed TCB's, set from
+     * <tt>TCB.maxThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * The <tt>Thread.Builder</tt> used to create virtual threads, or
+     * <tt>null</tt> to use platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    /** The builder's <tt>unstarted(Runnable)</tt> method. */
+    private static Method newVirtualThread = null;
+
+    /**
+     * The <tt>ContinuationScope</tt> used by all TCBs, or <tt>null</tt> if
+     * TCBs do not run as continuations.
+     */
+    private static Object continuationScope = null;
+    private static MethodHandle newContinuation, runContinuation,
+	yieldContinuation;
+    /** The TCB the carrier should resume when the current TCB yields. */
+    private static TCB nextTCB = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +675,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -401,6 +688,7 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    private Object continuation;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
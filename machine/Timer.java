@@ -30,6 +30,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +54,34 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as a one-shot alarm interrupt handler. The
+     * handler is called once for each time requested with
+     * <tt>setAlarm()</tt>.
+     *
+     * @param	handler		the alarm interrupt handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	alarmHandler = handler;
+    }
+
+    /**
+     * Request a one-shot alarm interrupt at the specified time, or as soon
+     * after it as possible. Only the earliest requested time is kept: a
+     * request for a later time than one already pending is ignored, and the
+     * handler should request the next time it needs when it is called.
+     *
+     * @param	time	the time at which to interrupt.
+     */
+    public void setAlarm(long time) {
+	if (alarmTime >= 0 && alarmTime <= time)
+	    return;
+
+	alarmTime = time;
+	privilege.interrupt.schedule(Math.max(1, time - getTime()), "alarm",
+				     alarmInterrupt);
+    }
+
     /**
      * Get the current time.
      *
@@ -69,6 +101,16 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void alarmInterrupt() {
+	// an interrupt for a time that was superseded by an earlier one
+	if (alarmTime < 0 || getTime() < alarmTime)
+	    return;
+
+	alarmTime = -1;
+	if (alarmHandler != null)
+	    alarmHandler.run();
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,6 +125,10 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable alarmInterrupt;
+    private Runnable alarmHandler = null;
+    /** The time of the pending alarm interrupt, or -1 if there is none. */
+    private long alarmTime = -1;
 
     private Privilege privilege;
     private Runnable handler = null;
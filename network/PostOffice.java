@@ -66,6 +66,35 @@ public class PostOffice {
 	return mail;
     }
 
+    /**
+     * Retrieve a message on the specified port, if one is waiting.
+     *
+     * @param	port	the port to take a message from.
+     *
+     * @return	the message received, or <tt>null</tt> if there is none.
+     */
+    public MailMessage poll(int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return (MailMessage) queues[port].poll();
+    }
+
+    /**
+     * Have a selector watch the specified port, so that one thread can serve
+     * many ports. When <tt>select()</tt> returns the port's key, a message
+     * can be taken with <tt>poll()</tt>.
+     *
+     * @param	selector	the selector to watch the port.
+     * @param	port		the port to watch.
+     *
+     * @return	the key of the port in the selector.
+     */
+    public int register(Selector selector, int port) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	return selector.register(queues[port]);
+    }
+
     /**
      * Wait for incoming messages, and then put them in the correct mailbox.
      */
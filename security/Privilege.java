@@ -158,6 +158,28 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by <i>count</i> ticks at once. This has
+	 * the same effect as calling <tt>tick(inKernelMode)</tt> <i>count</i>
+	 * times, and may only be used if no pending interrupt falls due
+	 * before the last of those ticks.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance.
+	 */
+	public void tick(boolean inKernelMode, long count);
+
+	/**
+	 * Return the amount of simulated time until the next pending interrupt
+	 * is due.
+	 *
+	 * @return	the number of ticks until the next interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 */
+	public long timeUntilNextInterrupt();
     }
 
     /**
@@ -2,11 +2,27 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.*;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Level 0 has a
+ * slot for each of the next 64 ticks, level 1 a slot for each of the next 64
+ * spans of 64 ticks, and so on. A sleeper goes into the lowest level whose
+ * slot covers only ticks at or after its wake time, in constant time. When
+ * the time reaches a slot at a higher level, its sleepers are spread over the
+ * levels below, so each sleeper moves at most once per level before it
+ * wakes. Each slot is a doubly-linked list, so a sleep can be cancelled in
+ * constant time too. The list entries are kept for reuse once their thread
+ * wakes, so sleeping allocates nothing once enough entries exist.
+ *
+ * <p>
+ * Besides checking at every timer interrupt, the alarm asks the timer for a
+ * one-shot interrupt when the earliest sleeper is due, so that threads wake
+ * on time rather than at the next timer interrupt, up to 500 ticks late.
+ * Wake times are rounded up to a multiple of <tt>Alarm.coalesceTicks</tt>,
+ * so that threads due within a few ticks of each other share one interrupt.
  */
 public class Alarm {
     /**
@@ -17,34 +33,45 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
-        waitingThreadSet = new TreeSet<WaitingThread>();
+	coalesceTicks = Config.getInteger("Alarm.coalesceTicks",
+					  Stats.KernelTick);
+	Lib.assertTrue(coalesceTicks > 0);
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
+	Machine.timer().setAlarmHandler(new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    });
     }
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
-     * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * periodically (approximately every 500 clock ticks). Wakes every thread
+     * whose wake time has come, then causes the current thread to yield,
+     * forcing a context switch if there is another thread that should be
+     * run.
      */
     public void timerInterrupt() {
-        boolean intStatus = Machine.interrupt().disable();
-        Iterator<WaitingThread> iter = waitingThreadSet.iterator(); 
-        while (iter.hasNext()) { 
-            WaitingThread entry = iter.next(); 
-            KThread thread = entry.thread(); 
-            long wakeTime = entry.wakeTime(); 
-            if (Machine.timer().getTime() > wakeTime) {
-                thread.ready();
-                iter.remove();
-            } else {
-                break;
-            }
-        }
+	boolean intStatus = Machine.interrupt().disable();
+
+	wakeDue(Machine.timer().getTime());
+
 	KThread.currentThread().yield();
-        Machine.interrupt().restore(intStatus);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The one-shot alarm interrupt handler. Wakes every thread whose wake
+     * time has come, and lets them run if any did.
+     */
+    private void alarmInterrupt() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (wakeDue(Machine.timer().getTime()))
+	    KThread.yield();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -62,42 +89,246 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-	long wakeTime = Machine.timer().getTime() + x;
-	if (wakeTime > Machine.timer().getTime()) {
-            boolean intStatus = Machine.interrupt().disable();
-            waitingThreadSet.add(new WaitingThread(KThread.currentThread(), wakeTime));
-            KThread.sleep();
-            Machine.interrupt().restore(intStatus);
-        }
+	if (x <= 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(thread.alarmEntry == null);
+
+	Entry entry = freeEntries;
+	if (entry == null)
+	    entry = new Entry();
+	else
+	    freeEntries = entry.next;
+
+	entry.thread = thread;
+	entry.wakeTime = Machine.timer().getTime() + x;
+	insert(entry);
+	thread.alarmEntry = entry;
+	setAlarm();
+
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Wake up a thread sleeping in <tt>waitUntil()</tt> before its time.
+     *
+     * @param	thread	the thread to wake.
+     * @return	<tt>true</tt> if the thread was sleeping in
+     *		<tt>waitUntil()</tt>.
+     */
+    public boolean cancel(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Entry entry = thread.alarmEntry;
+	if (entry != null) {
+	    unlink(entry);
+	    wake(entry);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return entry != null;
+    }
+
+    /**
+     * Wake every thread whose wake time is no later than <i>time</i>, and ask
+     * for an alarm interrupt when the next one is due. Interrupts must be
+     * disabled.
+     *
+     * @param	time	the current time.
+     * @return	<tt>true</tt> if any thread was woken.
+     */
+    private boolean wakeDue(long time) {
+	boolean woken = false;
+
+	while (true) {
+	    int level = lowestLevel();
+	    if (level == -1)
+		return woken;
+
+	    int slot = Long.numberOfTrailingZeros(occupied[level]);
+	    long start = slotStart(level, slot);
+	    if (start > time) {
+		setAlarm();
+		return woken;
+	    }
+
+	    Entry list = slots[level][slot];
+	    slots[level][slot] = null;
+	    occupied[level] &= ~(1L << slot);
+	    base = start;
+
+	    // a level 0 slot holds threads that wake at exactly this tick
+	    while (list != null) {
+		Entry next = list.next;
+		if (level == 0) {
+		    wake(list);
+		    woken = true;
+		}
+		else
+		    insert(list);
+		list = next;
+	    }
+	}
     }
 
-    public class WaitingThread implements Comparable<WaitingThread>{
+    /**
+     * Ask the timer for an interrupt when the first slot of the wheel is due,
+     * rounded up to a multiple of <tt>coalesceTicks</tt>. For a slot above
+     * level 0, that is when its sleepers must be spread over the levels below.
+     */
+    private void setAlarm() {
+	int level = lowestLevel();
+	if (level == -1)
+	    return;
 
-        public WaitingThread(KThread thread, long wakeTime) {
-            super();
-            this.thread = thread;
-            this.wakeTime = wakeTime;
-        }
+	long start = slotStart(level,
+			       Long.numberOfTrailingZeros(occupied[level]));
+	long time = (start + coalesceTicks - 1) / coalesceTicks * coalesceTicks;
+	Machine.timer().setAlarm(time);
+    }
 
-        public KThread thread() {
-            return thread;
-        }
+    /**
+     * Make the thread waiting on a removed entry ready, and keep the entry
+     * for reuse.
+     */
+    private void wake(Entry entry) {
+	KThread thread = entry.thread;
+	thread.alarmEntry = null;
+	thread.ready();
 
-        public long wakeTime() {
-            return wakeTime;
-        }
+	entry.thread = null;
+	entry.prev = null;
+	entry.next = freeEntries;
+	freeEntries = entry;
+    }
+
+    private void insert(Entry entry) {
+	Lib.assertTrue(entry.wakeTime >= base);
 
-        @Override
-        public int compareTo(WaitingThread w) {
-            return (this.wakeTime > w.wakeTime()?1:0) - (this.wakeTime < w.wakeTime()?1:0);
-        }
+	long diff = entry.wakeTime ^ base;
+	int level = (diff == 0) ? 0 :
+	    (63 - Long.numberOfLeadingZeros(diff)) / slotBits;
+	int slot = (int) (entry.wakeTime >>> (level*slotBits)) & (numSlots-1);
 
-        private KThread thread;
-        private long wakeTime;
+	Entry head = slots[level][slot];
+	entry.prev = null;
+	entry.next = head;
+	if (head != null)
+	    head.prev = entry;
+	slots[level][slot] = entry;
 
+	entry.level = level;
+	entry.slot = slot;
+	occupied[level] |= 1L << slot;
     }
 
-    public TreeSet<WaitingThread> waitingThreadSet;
+    private void unlink(Entry entry) {
+	if (entry.prev == null)
+	    slots[entry.level][entry.slot] = entry.next;
+	else
+	    entry.prev.next = entry.next;
+	if (entry.next != null)
+	    entry.next.prev = entry.prev;
+
+	if (slots[entry.level][entry.slot] == null)
+	    occupied[entry.level] &= ~(1L << entry.slot);
+    }
+
+    private int lowestLevel() {
+	for (int level=0; level<numLevels; level++) {
+	    if (occupied[level] != 0)
+		return level;
+	}
+	return -1;
+    }
+
+    /** Return the first tick covered by the specified slot. */
+    private long slotStart(int level, int slot) {
+	int shift = (level+1)*slotBits;
+	long high = (shift >= 64) ? 0 : (base >>> shift) << shift;
+
+	return high | ((long) slot << (level*slotBits));
+    }
+
+    /**
+     * A sleeping thread, linked into a slot of the wheel.
+     */
+    static class Entry {
+	private KThread thread;
+	private long wakeTime;
+	private int level, slot;
+	private Entry prev, next;
+    }
+
+    private static class Sleeper implements Runnable {
+	Sleeper(long wakeTime) {
+	    this.wakeTime = wakeTime;
+	}
+
+	public void run() {
+	    ThreadedKernel.alarm.waitUntil(wakeTime - Machine.timer().getTime());
+	    wokeTime = Machine.timer().getTime();
+	}
+
+	long wakeTime;
+	long wokeTime = -1;
+    }
+
+    /**
+     * Test that threads sleeping until the same tick all wake, none of them
+     * early, and that a cancelled sleeper wakes before its time.
+     */
+    public static void selfTest() {
+	System.out.println("----- Alarm TEST -----");
+
+	long wakeTime = Machine.timer().getTime() + 5000;
+	int numSleepers = 10;
+	Sleeper[] sleepers = new Sleeper[numSleepers];
+	KThread[] threads = new KThread[numSleepers];
+	for (int i=0; i<numSleepers; i++) {
+	    // the last sleeper is cancelled long before its time
+	    long time = (i == numSleepers-1) ? wakeTime + 1000000 : wakeTime;
+	    sleepers[i] = new Sleeper(time);
+	    threads[i] = new KThread(sleepers[i]).setName("sleeper " + i);
+	    threads[i].fork();
+	}
+
+	// let the sleeper to cancel start sleeping
+	while (threads[numSleepers-1].alarmEntry == null)
+	    KThread.yield();
+	Lib.assertTrue(ThreadedKernel.alarm.cancel(threads[numSleepers-1]));
+	Lib.assertTrue(!ThreadedKernel.alarm.cancel(threads[numSleepers-1]));
+
+	for (int i=0; i<numSleepers; i++)
+	    threads[i].join();
+
+	for (int i=0; i<numSleepers-1; i++)
+	    Lib.assertTrue(sleepers[i].wokeTime >= wakeTime,
+			   "sleeper " + i + " woke early");
+	Lib.assertTrue(sleepers[numSleepers-1].wokeTime < wakeTime);
+
+	System.out.println(numSleepers-1 + " sleepers woke at " +
+			   sleepers[0].wokeTime + " for " + wakeTime +
+			   ", 1 cancelled");
+    }
+
+    private static final int slotBits = 6;
+    private static final int numSlots = 1 << slotBits;
+    private static final int numLevels = (64+slotBits-1) / slotBits;
+
+    private Entry[][] slots = new Entry[numLevels][numSlots];
+    /** A bitmap of the non-empty slots at each level. */
+    private long[] occupied = new long[numLevels];
+    /** No sleeping thread wakes before this time. */
+    private long base = 0;
+    /** Entries whose threads have woken, kept for reuse. */
+    private Entry freeEntries = null;
 
+    /** Alarm interrupts are requested at multiples of this many ticks. */
+    private long coalesceTicks;
 }
@@ -0,0 +1,351 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A <i>bounded channel</i> carries 32-bit words from sending threads to
+ * receiving threads, many words at a time. Where a <tt>Communicator</tt> pairs
+ * a speaker and a listener for every word, a channel moves as many words as
+ * it can each time a thread gets to run, so a pipeline that moves many words
+ * switches threads once per batch rather than several times per word.
+ *
+ * <p>
+ * A channel with a positive capacity buffers up to that many words in a ring.
+ * A sender blocks only while the ring is full, and a receiver only while it
+ * is empty. The words of one <tt>send()</tt> may be interleaved with those of
+ * other senders if it has to block part way.
+ *
+ * <p>
+ * A channel with capacity 0 buffers nothing, and behaves like a
+ * <tt>Communicator</tt>: a receiver waits for a sender and a sender for a
+ * receiver, and each word goes to exactly one receiver. A waiting receiver
+ * offers its buffer, and a sender copies words straight into it, so a
+ * rendezvous still moves a whole batch. <tt>send()</tt> does not return until
+ * every word has been copied to a receiver.
+ */
+public class BoundedChannel {
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can buffer, or 0
+     *				for a channel that hands every word from a
+     *				sender straight to a receiver.
+     */
+    public BoundedChannel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	buffer = new int[capacity];
+
+	lock = new Lock();
+	notFull = new Condition2(lock);
+	notEmpty = new Condition2(lock);
+    }
+
+    /**
+     * Return the number of words this channel can buffer.
+     *
+     * @return	the capacity of this channel.
+     */
+    public int getCapacity() {
+	return capacity;
+    }
+
+    /**
+     * Send one word through this channel.
+     *
+     * @param	word	the word to send.
+     */
+    public void send(int word) {
+	send(new int[] { word }, 0, 1);
+    }
+
+    /**
+     * Send <i>len</i> words through this channel, starting at
+     * <i>words[off]</i>. Blocks until every word has been buffered, or for a
+     * channel without a buffer, until every word has been received.
+     *
+     * @param	words	the array holding the words to send.
+     * @param	off	the index of the first word to send.
+     * @param	len	the number of words to send.
+     */
+    public void send(int[] words, int off, int len) {
+	Lib.assertTrue(off >= 0 && len >= 0 && off+len <= words.length);
+
+	lock.acquire();
+
+	if (capacity == 0)
+	    handOff(words, off, len);
+	else
+	    enqueue(words, off, len);
+
+	lock.release();
+    }
+
+    /**
+     * Receive one word from this channel, waiting for a sender if none is
+     * available.
+     *
+     * @return	the word received.
+     */
+    public int receive() {
+	int[] word = new int[1];
+	receive(word, 0, 1);
+	return word[0];
+    }
+
+    /**
+     * Receive up to <i>len</i> words from this channel into <i>buf</i>,
+     * starting at <i>buf[off]</i>. Waits until at least one word is
+     * available, then returns as many as are available without waiting
+     * again.
+     *
+     * @param	buf	the array to receive words into.
+     * @param	off	the index to store the first word at.
+     * @param	len	the most words to receive. Must be positive.
+     * @return	the number of words received, at least 1.
+     */
+    public int receive(int[] buf, int off, int len) {
+	Lib.assertTrue(off >= 0 && len > 0 && off+len <= buf.length);
+
+	lock.acquire();
+
+	int received;
+	if (capacity == 0)
+	    received = awaitHandOff(buf, off, len);
+	else
+	    received = dequeue(buf, off, len);
+
+	lock.release();
+	return received;
+    }
+
+    /**
+     * Copy words into the ring, waiting whenever it is full.
+     */
+    private void enqueue(int[] words, int off, int len) {
+	while (len > 0) {
+	    while (count == capacity)
+		notFull.sleep();
+
+	    int tail = (head + count) % capacity;
+	    int amount = Math.min(len, capacity - count);
+	    int first = Math.min(amount, capacity - tail);
+	    System.arraycopy(words, off, buffer, tail, first);
+	    System.arraycopy(words, off+first, buffer, 0, amount-first);
+
+	    count += amount;
+	    off += amount;
+	    len -= amount;
+
+	    notEmpty.wake();
+	}
+
+	// another sender can use any space this one left
+	if (count < capacity)
+	    notFull.wake();
+    }
+
+    /**
+     * Copy words out of the ring, waiting until it holds at least one.
+     */
+    private int dequeue(int[] buf, int off, int len) {
+	while (count == 0)
+	    notEmpty.sleep();
+
+	int amount = Math.min(len, count);
+	int first = Math.min(amount, capacity - head);
+	System.arraycopy(buffer, head, buf, off, first);
+	System.arraycopy(buffer, 0, buf, off+first, amount-first);
+
+	head = (head + amount) % capacity;
+	count -= amount;
+
+	notFull.wake();
+	// another receiver can take any words this one left
+	if (count > 0)
+	    notEmpty.wake();
+
+	return amount;
+    }
+
+    /**
+     * Copy words straight into the buffers of waiting receivers, waiting
+     * whenever there are none.
+     */
+    private void handOff(int[] words, int off, int len) {
+	while (len > 0) {
+	    while (receivers.isEmpty())
+		notEmpty.sleep();
+
+	    Receiver receiver = receivers.removeFirst();
+	    int amount = Math.min(len, receiver.len);
+	    System.arraycopy(words, off, receiver.buf, receiver.off, amount);
+
+	    receiver.received = amount;
+	    receiver.done.wake();
+
+	    off += amount;
+	    len -= amount;
+	}
+
+	// another sender can serve any receivers this one left
+	if (!receivers.isEmpty())
+	    notEmpty.wake();
+    }
+
+    /**
+     * Offer a buffer to the senders, and wait until one has filled some of
+     * it.
+     */
+    private int awaitHandOff(int[] buf, int off, int len) {
+	Receiver receiver = new Receiver(buf, off, len);
+	receivers.add(receiver);
+
+	notEmpty.wake();
+	while (receiver.received == 0)
+	    receiver.done.sleep();
+
+	return receiver.received;
+    }
+
+    /**
+     * A receiver waiting on a channel without a buffer.
+     */
+    private class Receiver {
+	Receiver(int[] buf, int off, int len) {
+	    this.buf = buf;
+	    this.off = off;
+	    this.len = len;
+	}
+
+	int[] buf;
+	int off, len;
+	/** The number of words a sender has copied to this receiver. */
+	int received = 0;
+	Condition2 done = new Condition2(lock);
+    }
+
+    private int capacity;
+    private int[] buffer;
+    /** The index of the first buffered word. */
+    private int head = 0;
+    /** The number of buffered words. */
+    private int count = 0;
+
+    /** Receivers waiting on a channel without a buffer, oldest first. */
+    private LinkedList<Receiver> receivers = new LinkedList<Receiver>();
+
+    private Lock lock;
+    /** Senders waiting for space, when there is a buffer. */
+    private Condition2 notFull;
+    /** Receivers waiting for words, or senders waiting for receivers. */
+    private Condition2 notEmpty;
+
+    private static class Producer implements Runnable {
+	Producer(BoundedChannel channel, int words, int batch) {
+	    this.channel = channel;
+	    this.words = words;
+	    this.batch = batch;
+	}
+
+	public void run() {
+	    int[] buf = new int[batch];
+	    for (int sent=0; sent<words; ) {
+		int len = Math.min(batch, words-sent);
+		for (int i=0; i<len; i++)
+		    buf[i] = sent+i;
+		channel.send(buf, 0, len);
+		sent += len;
+	    }
+	}
+
+	private BoundedChannel channel;
+	private int words, batch;
+    }
+
+    /**
+     * Receive <i>words</i> words, checking that they arrive in order.
+     */
+    private static void consume(BoundedChannel channel, int words, int batch) {
+	int[] buf = new int[batch];
+	for (int received=0; received<words; ) {
+	    int len = channel.receive(buf, 0, Math.min(batch, words-received));
+	    for (int i=0; i<len; i++)
+		Lib.assertTrue(buf[i] == received+i);
+	    received += len;
+	}
+    }
+
+    /**
+     * Test that words pass through buffered and unbuffered channels in
+     * order, and that single words rendezvous like a <tt>Communicator</tt>.
+     */
+    public static void selfTest() {
+	System.out.println("----- BoundedChannel TEST -----");
+
+	int[] capacities = { 0, 1, 7, 64 };
+	for (int i=0; i<capacities.length; i++) {
+	    BoundedChannel channel = new BoundedChannel(capacities[i]);
+	    KThread producer =
+		new KThread(new Producer(channel, 10000, 100)).setName("producer");
+	    producer.fork();
+	    consume(channel, 10000, 37);
+	    producer.join();
+	    System.out.println("capacity " + capacities[i] + ": ok");
+	}
+
+	final BoundedChannel channel = new BoundedChannel(0);
+	KThread speaker = new KThread(new Runnable() {
+		public void run() { channel.send(123); }
+	    }).setName("speaker");
+	speaker.fork();
+	Lib.assertTrue(channel.receive() == 123);
+	speaker.join();
+    }
+
+    /**
+     * Compare the time to move <i>words</i> words through a
+     * <tt>Communicator</tt> and through channels of a few capacities.
+     *
+     * @param	words	the number of words to move.
+     */
+    public static void benchmark(final int words) {
+	final Communicator comm = new Communicator();
+	KThread speaker = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<words; i++)
+			comm.speak(i);
+		}
+	    }).setName("speaker");
+
+	long startTime = System.nanoTime();
+	speaker.fork();
+	for (int i=0; i<words; i++)
+	    comm.listen();
+	speaker.join();
+	long elapsed = System.nanoTime() - startTime;
+
+	System.out.println("Communicator: " + words + " words, " +
+			   (elapsed / Math.max(1, words)) + "ns per word");
+
+	int[] capacities = { 0, 64, 1024 };
+	for (int i=0; i<capacities.length; i++) {
+	    BoundedChannel channel = new BoundedChannel(capacities[i]);
+	    KThread producer =
+		new KThread(new Producer(channel, words, 256)).setName("producer");
+
+	    startTime = System.nanoTime();
+	    producer.fork();
+	    consume(channel, words, 256);
+	    producer.join();
+	    elapsed = System.nanoTime() - startTime;
+
+	    System.out.println("BoundedChannel(" + capacities[i] + "): " +
+			       words + " words, " +
+			       (elapsed / Math.max(1, words)) + "ns per word");
+	}
+    }
+}
@@ -0,0 +1,331 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler. Every thread has a <i>virtual runtime</i>: the
+ * ticks it has spent on the processor, scaled down by its weight. A queue
+ * always gives access to the waiting thread with the least virtual runtime,
+ * so each thread gets a share of the processor in proportion to its weight,
+ * and threads of equal weight share it as evenly as under round-robin.
+ *
+ * <p>
+ * Weights come from the same priorities a <tt>PriorityScheduler</tt> uses.
+ * A thread at the default priority has weight 1024, and each priority step
+ * up or down multiplies or divides its weight by 1.25.
+ *
+ * <p>
+ * The scheduler times each turn on the processor with
+ * <tt>Machine.timer()</tt>, from when <tt>KThread.restoreState()</tt> reports
+ * a thread running until it yields or the next thread starts running. It
+ * also keeps the minimum virtual runtime of the threads it has run. A new
+ * thread starts there, and a thread that wakes up after sleeping, for
+ * example in <tt>Alarm.waitUntil()</tt>, is moved up to at most
+ * <tt>CFSScheduler.sleeperCredit</tt> ticks behind it, so that sleeping
+ * does not bank an unbounded claim on the processor.
+ *
+ * <p>
+ * Each queue keeps its threads in a red-black tree (a <tt>TreeSet</tt>) keyed
+ * on virtual runtime, so choosing the next thread takes O(log n) time. This
+ * scheduler does not transfer priority.
+ */
+public class CFSScheduler extends Scheduler {
+    /**
+     * Allocate a new CFS scheduler.
+     */
+    public CFSScheduler() {
+	sleeperCredit = Config.getInteger("CFSScheduler.sleeperCredit",
+					  Stats.TimerTicks);
+	Lib.assertTrue(sleeperCredit >= 0);
+    }
+
+    /**
+     * Allocate a new CFS thread queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer priority.
+     * @return	a new CFS thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).priority = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Charge the thread that was running, if it is the one yielding.
+     * Otherwise the thread is waking up, and gets at most
+     * <tt>sleeperCredit</tt> ticks of credit.
+     */
+    public void readyThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	if (state == running) {
+	    charge(state, Machine.timer().getTime() - state.dispatchTime);
+	    running = null;
+	}
+	else if (!state.started) {
+	    state.vruntime = minVruntime;
+	}
+	else {
+	    state.vruntime = Math.max(state.vruntime,
+				      minVruntime - sleeperCredit);
+	}
+
+	state.started = true;
+    }
+
+    /**
+     * Charge the thread that was running, if it did not yield, then start
+     * timing this thread.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	if (running != null)
+	    charge(running, time - running.dispatchTime);
+
+	// the idle thread is never made ready, so it is never timed
+	ThreadState state = getThreadState(thread);
+	if (state.started) {
+	    running = state;
+	    running.dispatchTime = time;
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+	}
+	else {
+	    running = null;
+	}
+    }
+
+    /**
+     * Add <i>used</i> ticks, scaled by the thread's weight, to its virtual
+     * runtime.
+     */
+    void charge(ThreadState state, long used) {
+	state.vruntime += used * weights[priorityDefault] /
+	    weights[state.priority];
+    }
+
+    /**
+     * The default priority of a thread.
+     */
+    public static final int priorityDefault =
+	PriorityScheduler.priorityDefault;
+    /**
+     * The minimum priority that a thread can have.
+     */
+    public static final int priorityMinimum =
+	PriorityScheduler.priorityMinimum;
+    /**
+     * The maximum priority that a thread can have.
+     */
+    public static final int priorityMaximum =
+	PriorityScheduler.priorityMaximum;
+
+    /**
+     * The weight of a thread at each priority.
+     */
+    private static final long[] weights = new long[priorityMaximum+1];
+    static {
+	for (int i=priorityMinimum; i<=priorityMaximum; i++)
+	    weights[i] = Math.round(1024 * Math.pow(1.25, i-priorityDefault));
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that gives access to the waiting thread with the
+     * least virtual runtime, and then to the one that has waited longest.
+     */
+    private class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.queueSeq < 0);
+
+	    state.queueKey = state.vruntime;
+	    state.queueSeq = nextSeq++;
+	    waitQueue.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = waitQueue.pollFirst();
+	    if (state == null)
+		return null;
+
+	    state.queueSeq = -1;
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waitQueue.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " <" + state.queueKey + "> ");
+	    }
+	}
+
+	private TreeSet<ThreadState> waitQueue =
+	    new TreeSet<ThreadState>(new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			if (a.queueKey != b.queueKey)
+			    return (a.queueKey < b.queueKey) ? -1 : 1;
+			if (a.queueSeq != b.queueSeq)
+			    return (a.queueSeq < b.queueSeq) ? -1 : 1;
+			return 0;
+		    }
+		});
+	private long nextSeq = 0;
+    }
+
+    /**
+     * The scheduling state of a thread: its priority and virtual runtime.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority = priorityDefault;
+	/** The weighted ticks the associated thread has run for. */
+	protected long vruntime = 0;
+
+	/** <tt>true</tt> once the thread has been made ready. */
+	private boolean started = false;
+	private long dispatchTime;
+	/** The virtual runtime this thread is queued by. */
+	private long queueKey;
+	/** When this thread started waiting, or -1 if it is not waiting. */
+	private long queueSeq = -1;
+    }
+
+    private static class Tester implements Runnable {
+	public void run() {
+	}
+    }
+
+    /**
+     * Test that threads share the processor in proportion to their weights.
+     */
+    public static void selfTest() {
+	System.out.println("----- CFSScheduler TEST -----");
+	boolean intStatus = Machine.interrupt().disable();
+
+	CFSScheduler scheduler = new CFSScheduler();
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+	KThread low = new KThread(new Tester()).setName("low");
+	KThread high = new KThread(new Tester()).setName("high");
+	scheduler.setPriority(high, priorityDefault+3);
+	readyQueue.waitForAccess(low);
+	readyQueue.waitForAccess(high);
+
+	// each chosen thread runs for 100 ticks, then waits again
+	int lowRuns = 0, highRuns = 0;
+	for (int i=0; i<3000; i++) {
+	    KThread thread = readyQueue.nextThread();
+	    if (thread == low)
+		lowRuns++;
+	    else
+		highRuns++;
+	    scheduler.charge(scheduler.getThreadState(thread), 100);
+	    readyQueue.waitForAccess(thread);
+	}
+
+	double ratio = (double) highRuns / lowRuns;
+	double expected = (double) weights[priorityDefault+3] /
+	    weights[priorityDefault];
+	System.out.println("high ran " + highRuns + " times, low " + lowRuns);
+	Lib.assertTrue(Math.abs(ratio - expected) < 0.02 * expected);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** The most ticks of credit a waking thread can have. */
+    private long sleeperCredit;
+    /** The virtual runtime of the thread that ran most recently, or more. */
+    private long minVruntime = 0;
+    /** The running thread, if it has not been charged yet. */
+    private ThreadState running = null;
+}
@@ -40,6 +40,11 @@ public class Communicator {
     	// words.add(word);
     	if (numListener == 0) {
     	    numSpeaker++;
+    	    if (watchers != null) {
+    		boolean intStatus = Machine.interrupt().disable();
+    		watchers.signal();
+    		Machine.interrupt().restore(intStatus);
+    	    }
     	    speakerQueue.sleep();
     	    numSpeaker--;
     	} else {
@@ -80,7 +85,17 @@ public class Communicator {
 	return heard;
     }
 
+    /**
+     * Test if a speaker is waiting, so that <tt>listen()</tt> would not wait
+     * for one. Interrupts must be disabled.
+     */
+    boolean isReady() {
+    	return numSpeaker > 0;
+    }
+
     private Lock conditionLock;
+    /** The selectors watching this communicator, or <tt>null</tt> if none. */
+    Selector.Watchers watchers = null;
     // private int word;
     private Condition2 speakerQueue;
     private Condition2 listenerQueue;
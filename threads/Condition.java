@@ -2,10 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables built upon scheduler queues.
  *
  * <p>
  * A condition variable is a synchronization primitive that does not have
@@ -61,7 +59,7 @@ public class Condition {
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
 
-	waitQueue = new LinkedList<Semaphore>();
+	waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
     }
 
     /**
@@ -71,19 +69,24 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-     * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * Sleeping threads wait in a queue from the scheduler, so that
+     * <tt>wake()</tt> wakes the thread the scheduler would choose, and no
+     * semaphore needs to be allocated for each sleep. Interrupts stay
+     * disabled from when the thread joins the queue until it sleeps, so
+     * there is no chance it will miss the wake-up, even though the lock is
+     * released before it sleeps.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	boolean intStatus = Machine.interrupt().disable();
+	waitQueue.waitForAccess(KThread.currentThread());
 
 	conditionLock.release();
-	waiter.P();
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+
 	conditionLock.acquire();	
     }
 
@@ -94,8 +97,13 @@ public class Condition {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    thread.ready();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -105,10 +113,15 @@ public class Condition {
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	while (!waitQueue.isEmpty())
-	    wake();
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    thread.ready();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    private ThreadQueue waitQueue;
 }
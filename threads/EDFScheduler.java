@@ -0,0 +1,572 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An earliest-deadline-first scheduler. A thread may be given a deadline,
+ * an absolute time in ticks as returned by <tt>Machine.timer().getTime()</tt>,
+ * and a queue always gives access to the waiting thread with the earliest
+ * deadline. Threads with no deadline come after all threads with one, and
+ * threads with the same deadline are served first-come first-served.
+ *
+ * <p>
+ * Deadlines are inherited through queues that transfer priority, the way a
+ * priority scheduler donates priority: the effective deadline of a thread is
+ * the earliest of its own deadline and those of all threads waiting for it
+ * through a lock or a join. A queue held in shared mode passes its deadline
+ * on to every thread holding it.
+ *
+ * <p>
+ * A periodic task should ask to be admitted with
+ * <tt>admit(thread, budget, period)</tt> before it starts. Each period, it
+ * should call <tt>setDeadline()</tt> with the end of the period when it
+ * starts its job, and set its deadline to <tt>noDeadline</tt> when the job is
+ * done, before it sleeps until the next period. Replacing a deadline counts
+ * it as met or missed, and the counts are printed when Nachos halts.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					pass the deadlines of waiting threads
+     *					on to the owning thread.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(transferPriority);
+    }
+
+    /**
+     * Set the deadline of the specified thread. If the thread already had a
+     * deadline, its job is complete, and that deadline was met if it has not
+     * passed yet. Must be called with interrupts disabled.
+     *
+     * @param	thread		the thread to set the deadline of.
+     * @param	deadline	the new deadline, in ticks, or
+     *				<tt>noDeadline</tt>.
+     */
+    public void setDeadline(KThread thread, long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	if (state.deadline != noDeadline) {
+	    if (Machine.timer().getTime() <= state.deadline)
+		deadlinesMet++;
+	    else
+		deadlinesMissed++;
+	}
+
+	state.setDeadline(deadline);
+    }
+
+    /**
+     * Set the deadline of the current thread. Equivalent to
+     * <tt>setDeadline(KThread.currentThread(), deadline)</tt>.
+     *
+     * @param	deadline	the new deadline, in ticks.
+     */
+    public void setDeadline(long deadline) {
+	setDeadline(KThread.currentThread(), deadline);
+    }
+
+    /**
+     * Return the deadline of the specified thread. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread to get the deadline of.
+     * @return	the thread's deadline, or <tt>noDeadline</tt>.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).deadline;
+    }
+
+    /**
+     * Return the effective deadline of the specified thread, taking into
+     * account the deadlines it has inherited. Must be called with interrupts
+     * disabled.
+     *
+     * @param	thread	the thread to get the effective deadline of.
+     * @return	the thread's effective deadline, or <tt>noDeadline</tt>.
+     */
+    public long getEffectiveDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).effectiveDeadline;
+    }
+
+    /**
+     * Admit the specified thread as a periodic task that needs
+     * <i>budget</i> ticks of processor time every <i>period</i> ticks, if
+     * every task admitted so far can still meet its deadlines. Under EDF this
+     * is so exactly when the tasks' utilizations add up to at most 1.
+     * Admitting a thread again replaces its earlier reservation. Must be
+     * called with interrupts disabled.
+     *
+     * @param	thread	the thread to admit.
+     * @param	budget	the processor time the thread needs each period.
+     * @param	period	the length of the thread's period, in ticks.
+     * @return	<tt>true</tt> if the thread was admitted, or <tt>false</tt>
+     *		if it was rejected.
+     */
+    public boolean admit(KThread thread, long budget, long period) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(budget > 0 && budget <= period);
+
+	ThreadState state = getThreadState(thread);
+	double newUtilization =
+	    utilization - state.utilization + (double) budget / period;
+
+	if (newUtilization > 1.0 + 1e-9) {
+	    admissionsRejected++;
+	    return false;
+	}
+
+	utilization = newUtilization;
+	state.utilization = (double) budget / period;
+	return true;
+    }
+
+    /**
+     * Give up the reservation made for the specified thread by
+     * <tt>admit()</tt>. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread to withdraw.
+     */
+    public void withdraw(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	utilization -= state.utilization;
+	state.utilization = 0;
+    }
+
+    /**
+     * Print how many deadlines were met and missed, and how many threads
+     * were not admitted.
+     */
+    public void printStats() {
+	System.out.println("Deadlines: met " + deadlinesMet
+			   + ", missed " + deadlinesMissed
+			   + ", rejected " + admissionsRejected);
+    }
+
+    /**
+     * The deadline of a thread that has none.
+     */
+    public static final long noDeadline = Long.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that gives access to the waiting thread with the
+     * earliest effective deadline. Waiting threads are kept in a binary heap
+     * ordered by effective deadline, and then by the order in which they
+     * started waiting.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+	    state.waitingOn = this;
+
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+	    state.queueKey = state.effectiveDeadline;
+	    state.queueSeq = nextSeq++;
+	    heap[size] = state;
+	    state.queueIndex = size++;
+	    siftUp(state.queueIndex);
+
+	    updateDonation();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(size == 0 && !isShared());
+
+	    if (holder != null)
+		holder.relinquish(this);
+
+	    holder = getThreadState(thread);
+	    holder.acquire(this);
+	}
+
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(holder == null);
+
+	    if (sharedHolders == null)
+		sharedHolders = new ArrayList<ThreadState>();
+
+	    ThreadState state = getThreadState(thread);
+	    sharedHolders.add(state);
+	    state.acquire(this);
+	}
+
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (holder == state) {
+		holder = null;
+		state.relinquish(this);
+	    }
+	    else {
+		Lib.assertTrue(isShared() && sharedHolders.remove(state));
+		state.held.remove(this);
+		state.updateEffectiveDeadline();
+	    }
+
+	    if (!isShared())
+		donation = getDonation();
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(!isShared());
+
+	    ThreadState next = null;
+	    if (size > 0) {
+		next = removeAt(0);
+		next.waitingOn = null;
+	    }
+
+	    if (holder != null)
+		holder.relinquish(this);
+
+	    holder = next;
+	    if (next == null)
+		return null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + " <" + heap[i].deadline +
+				 "," + heap[i].effectiveDeadline + "> ");
+	    if (holder != null)
+		System.out.print("Holder: " + holder.thread);
+	    if (isShared()) {
+		System.out.print("Shared holders:");
+		for (ThreadState state : sharedHolders)
+		    System.out.print(" " + state.thread);
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Return the deadline this queue passes on to its holder.
+	 */
+	long getDonation() {
+	    return (transferPriority && size > 0) ? heap[0].queueKey :
+		noDeadline;
+	}
+
+	/**
+	 * Move a waiting thread whose effective deadline has changed to its
+	 * new place in the heap.
+	 */
+	void reposition(ThreadState state) {
+	    if (state.effectiveDeadline == state.queueKey)
+		return;
+
+	    state.queueKey = state.effectiveDeadline;
+	    siftUp(state.queueIndex);
+	    siftDown(state.queueIndex);
+	}
+
+	private void updateDonation() {
+	    long newDonation = getDonation();
+	    if (newDonation == donation)
+		return;
+
+	    donation = newDonation;
+	    if (isShared())
+		updateSharedHolders();
+	    else if (holder != null)
+		holder.updateEffectiveDeadline();
+	}
+
+	/**
+	 * Recompute the effective deadline of every thread holding this queue
+	 * shared, after the deadline it passes on has changed.
+	 */
+	void updateSharedHolders() {
+	    for (ThreadState state : sharedHolders)
+		state.updateEffectiveDeadline();
+	}
+
+	/** Return <tt>true</tt> if any thread holds this queue shared. */
+	boolean isShared() {
+	    return sharedHolders != null && !sharedHolders.isEmpty();
+	}
+
+	private ThreadState removeAt(int i) {
+	    ThreadState state = heap[i];
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+
+	    if (last != state) {
+		place(last, i);
+		siftUp(i);
+		siftDown(last.queueIndex);
+	    }
+
+	    state.queueIndex = -1;
+	    return state;
+	}
+
+	private boolean before(ThreadState a, ThreadState b) {
+	    return a.queueKey < b.queueKey ||
+		(a.queueKey == b.queueKey && a.queueSeq < b.queueSeq);
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0) {
+		int parent = (i-1)/2;
+		if (!before(state, heap[parent]))
+		    break;
+		place(heap[parent], i);
+		i = parent;
+	    }
+	    place(state, i);
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (true) {
+		int child = 2*i+1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		place(heap[child], i);
+		i = child;
+	    }
+	    place(state, i);
+	}
+
+	private void place(ThreadState state, int i) {
+	    heap[i] = state;
+	    state.queueIndex = i;
+	}
+
+	/**
+	 * The deadline this queue currently passes on to its holder, or to
+	 * each of its shared holders.
+	 */
+	long donation = noDeadline;
+	/** The thread holding this queue, or <tt>null</tt>. */
+	ThreadState holder = null;
+	/** The threads holding this queue shared, or <tt>null</tt>. */
+	private ArrayList<ThreadState> sharedHolders = null;
+
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	private long nextSeq = 0;
+
+	/**
+	 * <tt>true</tt> if this queue should pass the deadlines of waiting
+	 * threads on to the owning thread.
+	 */
+	private boolean transferPriority;
+    }
+
+    /**
+     * The scheduling state of a thread: its deadline, its effective
+     * deadline, the queues it holds, and where it waits.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts with no deadline.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set the deadline of the associated thread.
+	 *
+	 * @param	deadline	the new deadline.
+	 */
+	public void setDeadline(long deadline) {
+	    this.deadline = deadline;
+	    updateEffectiveDeadline();
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>queue</tt>.
+	 */
+	void acquire(DeadlineQueue queue) {
+	    held.add(queue);
+	    queue.donation = queue.getDonation();
+	    updateEffectiveDeadline();
+	}
+
+	/**
+	 * Called when the associated thread gives up <tt>queue</tt>.
+	 */
+	void relinquish(DeadlineQueue queue) {
+	    held.remove(queue);
+	    queue.donation = noDeadline;
+	    updateEffectiveDeadline();
+	}
+
+	/**
+	 * Recompute the effective deadline of the associated thread. A change
+	 * moves the thread within the queue it waits on, and may change the
+	 * deadline that queue passes on to its holder, and so on along the
+	 * chain of holders until nothing changes. A queue held shared updates
+	 * each of its holders this way in turn.
+	 */
+	void updateEffectiveDeadline() {
+	    ThreadState state = this;
+	    while (true) {
+		long newDeadline = state.deadline;
+		for (DeadlineQueue queue : state.held)
+		    newDeadline = Math.min(newDeadline, queue.donation);
+
+		if (newDeadline == state.effectiveDeadline)
+		    return;
+		state.effectiveDeadline = newDeadline;
+
+		DeadlineQueue waitQueue = state.waitingOn;
+		if (waitQueue == null)
+		    return;
+		waitQueue.reposition(state);
+
+		long donation = waitQueue.getDonation();
+		if (donation == waitQueue.donation)
+		    return;
+		waitQueue.donation = donation;
+
+		if (waitQueue.isShared()) {
+		    waitQueue.updateSharedHolders();
+		    return;
+		}
+		state = waitQueue.holder;
+		// a cycle of waiting threads would never settle
+		if (state == null || state == this)
+		    return;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The deadline of the associated thread. */
+	protected long deadline = noDeadline;
+	/** The deadline of the associated thread, including inherited ones. */
+	protected long effectiveDeadline = noDeadline;
+
+	/** The fraction of the processor reserved by <tt>admit()</tt>. */
+	private double utilization = 0;
+	/** The queues this thread holds, exclusive or shared. */
+	private ArrayList<DeadlineQueue> held = new ArrayList<DeadlineQueue>();
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private DeadlineQueue waitingOn = null;
+	private int queueIndex = -1;
+	private long queueKey;
+	private long queueSeq;
+    }
+
+    private static class Tester implements Runnable {
+	public void run() {
+	}
+    }
+
+    /**
+     * Test that threads are served in order of deadline, that deadlines are
+     * inherited through a lock, and that admission control rejects an
+     * overloaded set of tasks.
+     */
+    public static void selfTest() {
+	System.out.println("----- EDFScheduler TEST -----");
+	boolean intStatus = Machine.interrupt().disable();
+
+	EDFScheduler scheduler = new EDFScheduler();
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[4];
+	long[] deadlines = { 300, noDeadline, 100, 200 };
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Tester()).setName("thread " + i);
+	    scheduler.setDeadline(threads[i], deadlines[i]);
+	    readyQueue.waitForAccess(threads[i]);
+	}
+	Lib.assertTrue(readyQueue.nextThread() == threads[2]);
+	Lib.assertTrue(readyQueue.nextThread() == threads[3]);
+	Lib.assertTrue(readyQueue.nextThread() == threads[0]);
+	Lib.assertTrue(readyQueue.nextThread() == threads[1]);
+	readyQueue.nextThread();
+
+	// thread 1 holds a lock that thread 2 waits for
+	ThreadQueue lockQueue = scheduler.newThreadQueue(true);
+	lockQueue.acquire(threads[1]);
+	readyQueue.waitForAccess(threads[0]);
+	readyQueue.waitForAccess(threads[1]);
+	lockQueue.waitForAccess(threads[2]);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(threads[1]) == 100);
+	Lib.assertTrue(readyQueue.nextThread() == threads[1]);
+	lockQueue.nextThread();
+	Lib.assertTrue(scheduler.getEffectiveDeadline(threads[1]) ==
+		       noDeadline);
+	readyQueue.nextThread();
+
+	Lib.assertTrue(scheduler.admit(threads[0], 1, 2));
+	Lib.assertTrue(scheduler.admit(threads[1], 1, 4));
+	Lib.assertTrue(!scheduler.admit(threads[2], 1, 3));
+	Lib.assertTrue(scheduler.admit(threads[2], 1, 4));
+	scheduler.withdraw(threads[0]);
+	Lib.assertTrue(scheduler.admit(threads[3], 1, 3));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /** The fraction of the processor reserved by <tt>admit()</tt>. */
+    private double utilization = 0;
+
+    private int deadlinesMet = 0;
+    private int deadlinesMissed = 0;
+    private int admissionsRejected = 0;
+}
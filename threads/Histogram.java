@@ -0,0 +1,135 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative <tt>long</tt> values, such as durations in
+ * ticks, with a fixed relative precision. Values below 16 are counted
+ * exactly; larger values are counted in one of 16 buckets per power of two,
+ * so any percentile is reported to within 1/16 of its true value. The
+ * buckets are allocated once, so recording a value never allocates.
+ */
+public class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public Histogram() {
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param	value	the value to record. Must not be negative.
+     */
+    public void record(long value) {
+	Lib.assertTrue(value >= 0);
+
+	counts[bucketOf(value)]++;
+	count++;
+	sum += value;
+	if (value > max)
+	    max = value;
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return	the number of values recorded.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the largest value recorded, or 0 if none has been.
+     *
+     * @return	the largest value recorded.
+     */
+    public long getMax() {
+	return max;
+    }
+
+    /**
+     * Return the mean of the values recorded, or 0 if none has been.
+     *
+     * @return	the mean of the values recorded.
+     */
+    public double getMean() {
+	return (count == 0) ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Return the smallest value that at least the given fraction of the
+     * recorded values are no greater than, to within the histogram's
+     * precision.
+     *
+     * @param	fraction	the fraction, between 0 and 1.
+     * @return	the value at that percentile, or 0 if no value has been
+     *		recorded.
+     */
+    public long getPercentile(double fraction) {
+	Lib.assertTrue(fraction >= 0 && fraction <= 1);
+
+	if (count == 0)
+	    return 0;
+
+	long rank = Math.max(1, (long) Math.ceil(fraction * count));
+	long seen = 0;
+	for (int i=0; i<counts.length; i++) {
+	    seen += counts[i];
+	    if (seen >= rank)
+		return Math.min(highestOf(i), max);
+	}
+
+	return max;
+    }
+
+    /**
+     * Forget every value recorded.
+     */
+    public void clear() {
+	Arrays.fill(counts, 0);
+	count = sum = max = 0;
+    }
+
+    /**
+     * Return a one-line summary of this histogram.
+     */
+    public String toString() {
+	return "count " + count
+	    + ", mean " + Math.round(getMean())
+	    + ", p50 " + getPercentile(0.50)
+	    + ", p90 " + getPercentile(0.90)
+	    + ", p99 " + getPercentile(0.99)
+	    + ", max " + max;
+    }
+
+    private static int bucketOf(long value) {
+	if (value < subBuckets)
+	    return (int) value;
+
+	int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+	return ((shift+1) << subBucketBits) +
+	    (int) ((value >>> shift) - subBuckets);
+    }
+
+    /** Return the largest value counted in the specified bucket. */
+    private static long highestOf(int bucket) {
+	if (bucket < subBuckets)
+	    return bucket;
+
+	int shift = (bucket >> subBucketBits) - 1;
+	long mantissa = (bucket & (subBuckets-1)) + subBuckets;
+	return ((mantissa+1) << shift) - 1;
+    }
+
+    private static final int subBucketBits = 4;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private long[] counts = new long[(64-subBucketBits+1) << subBucketBits];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+}
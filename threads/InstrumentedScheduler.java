@@ -0,0 +1,264 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A scheduler that wraps another, and measures how well it serves threads.
+ * Every queue the wrapped scheduler creates is wrapped as well. All times are
+ * in ticks, and are recorded in histograms:
+ *
+ * <ul>
+ * <li>ready wait: from when a thread is made ready until it runs.
+ * <li>run slice: from when a thread starts running until another thread
+ *     does.
+ * <li>lock hold: from when a thread gets access through a queue that
+ *     transfers priority, such as a lock's, until it gives access up.
+ * </ul>
+ *
+ * <p>
+ * It also counts context switches, and donations: the times a thread waiting
+ * on a queue raised the effective priority of the queue's holder. The results
+ * are printed when Nachos halts, after the machine's statistics. If
+ * <tt>InstrumentedScheduler.perThread</tt> is set, the totals for each thread
+ * are printed as well.
+ *
+ * <p>
+ * <tt>ThreadedKernel</tt> wraps its scheduler in one of these when
+ * <tt>ThreadedKernel.instrumentScheduler</tt> is set.
+ */
+public class InstrumentedScheduler extends Scheduler {
+    /**
+     * Allocate a new instrumented scheduler.
+     *
+     * @param	scheduler	the scheduler to wrap.
+     */
+    public InstrumentedScheduler(Scheduler scheduler) {
+	this.scheduler = scheduler;
+
+	perThread = Config.getBoolean("InstrumentedScheduler.perThread", false);
+    }
+
+    /**
+     * Return the scheduler this one wraps.
+     *
+     * @return	the wrapped scheduler.
+     */
+    public Scheduler getScheduler() {
+	return scheduler;
+    }
+
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new InstrumentedQueue(scheduler.newThreadQueue(transferPriority),
+				     transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	return scheduler.getPriority(thread);
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return scheduler.getEffectivePriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	scheduler.setPriority(thread, priority);
+    }
+
+    public boolean increasePriority() {
+	return scheduler.increasePriority();
+    }
+
+    public boolean decreasePriority() {
+	return scheduler.decreasePriority();
+    }
+
+    /**
+     * Note when the thread was made ready.
+     */
+    public void readyThread(KThread thread) {
+	scheduler.readyThread(thread);
+
+	getRecord(thread).readyTime = Machine.timer().getTime();
+    }
+
+    /**
+     * Close the slice of the thread that was running, and record how long
+     * this thread waited to run.
+     */
+    public void runningThread(KThread thread) {
+	scheduler.runningThread(thread);
+
+	long time = Machine.timer().getTime();
+
+	if (running != null) {
+	    long slice = time - running.dispatchTime;
+	    runSlice.record(slice);
+	    running.runTicks += slice;
+	}
+
+	// the idle thread is never made ready, so it is never measured
+	ThreadRecord record = records.get(thread);
+	if (record == null) {
+	    running = null;
+	    return;
+	}
+
+	if (record != running)
+	    contextSwitches++;
+
+	if (record.readyTime >= 0) {
+	    long wait = time - record.readyTime;
+	    readyWait.record(wait);
+	    record.waitTicks += wait;
+	    record.readyTime = -1;
+	}
+
+	record.dispatches++;
+	record.dispatchTime = time;
+	running = record;
+    }
+
+    /**
+     * Print the statistics of the wrapped scheduler, then these.
+     */
+    public void printStats() {
+	scheduler.printStats();
+
+	System.out.println("Ready wait: " + readyWait);
+	System.out.println("Run slice: " + runSlice);
+	System.out.println("Lock hold: " + lockHold);
+	System.out.println("Scheduling: context switches " + contextSwitches
+			   + ", donations " + donations);
+
+	if (perThread) {
+	    for (ThreadRecord record : recordList) {
+		System.out.println(record.thread + ": dispatches "
+				   + record.dispatches
+				   + ", ready wait " + record.waitTicks
+				   + ", run " + record.runTicks
+				   + ", lock hold " + record.holdTicks);
+	    }
+	}
+    }
+
+    private ThreadRecord getRecord(KThread thread) {
+	ThreadRecord record = records.get(thread);
+	if (record == null) {
+	    record = new ThreadRecord(thread);
+	    records.put(thread, record);
+	    recordList.add(record);
+	}
+
+	return record;
+    }
+
+    /**
+     * A queue that passes every operation on to the wrapped scheduler's
+     * queue. If it transfers priority, it also times how long each thread
+     * holds it, and counts donations.
+     */
+    private class InstrumentedQueue extends ThreadQueue {
+	InstrumentedQueue(ThreadQueue queue, boolean transferPriority) {
+	    this.queue = queue;
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    if (!transferPriority || holder == null) {
+		queue.waitForAccess(thread);
+		return;
+	    }
+
+	    int before = scheduler.getEffectivePriority(holder);
+	    queue.waitForAccess(thread);
+	    if (scheduler.getEffectivePriority(holder) != before)
+		donations++;
+	}
+
+	public KThread nextThread() {
+	    KThread thread = queue.nextThread();
+	    if (transferPriority)
+		hold(thread);
+
+	    return thread;
+	}
+
+	public void acquire(KThread thread) {
+	    queue.acquire(thread);
+	    if (transferPriority)
+		hold(thread);
+	}
+
+	public void acquireShared(KThread thread) {
+	    queue.acquireShared(thread);
+	}
+
+	public void release(KThread thread) {
+	    queue.release(thread);
+	    if (transferPriority && thread == holder)
+		hold(null);
+	}
+
+	public void print() {
+	    queue.print();
+	}
+
+	/**
+	 * Close the hold of the previous holder, and start timing the new one.
+	 */
+	private void hold(KThread thread) {
+	    long time = Machine.timer().getTime();
+
+	    if (holder != null) {
+		long hold = time - holdTime;
+		lockHold.record(hold);
+		getRecord(holder).holdTicks += hold;
+	    }
+
+	    holder = thread;
+	    holdTime = time;
+	}
+
+	private ThreadQueue queue;
+	private boolean transferPriority;
+	private KThread holder = null;
+	private long holdTime;
+    }
+
+    /**
+     * The totals kept for each thread.
+     */
+    private static class ThreadRecord {
+	ThreadRecord(KThread thread) {
+	    this.thread = thread;
+	}
+
+	KThread thread;
+	/** When the thread was made ready, or -1 if it is not ready. */
+	long readyTime = -1;
+	long dispatchTime;
+	int dispatches = 0;
+	long waitTicks = 0;
+	long runTicks = 0;
+	long holdTicks = 0;
+    }
+
+    private Scheduler scheduler;
+    private boolean perThread;
+
+    private HashMap<KThread, ThreadRecord> records =
+	new HashMap<KThread, ThreadRecord>();
+    /** The records, in the order the threads were first made ready. */
+    private ArrayList<ThreadRecord> recordList = new ArrayList<ThreadRecord>();
+    /** The record of the running thread, or <tt>null</tt> if it is idle. */
+    private ThreadRecord running = null;
+
+    private Histogram readyWait = new Histogram();
+    private Histogram runSlice = new Histogram();
+    private Histogram lockHold = new Histogram();
+    private long contextSwitches = 0;
+    private long donations = 0;
+}
@@ -262,9 +262,14 @@ public class KThread {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(status != statusReady);
 	
-	status = statusReady;
 	if (this != idleThread)
+	    ThreadedKernel.scheduler.readyThread(this);
+
+	status = statusReady;
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReadyThreads++;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -292,12 +297,26 @@ public class KThread {
      *
      * <p>
      * Note that <tt>ready()</tt> never adds the idle thread to the ready set.
+     *
+     * <p>
+     * If <tt>KThread.idleFastForward</tt> is set, the idle thread skips
+     * simulated time ahead to the next pending interrupt instead of yielding
+     * once per tick until it arrives.
      */
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
+
+	final boolean fastForward =
+	    Config.getBoolean("KThread.idleFastForward", false);
 	
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (fastForward && numReadyThreads == 0)
+			Machine.interrupt().idle();
+		    yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -314,6 +333,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReadyThreads--;
 
 	nextThread.run();
     }
@@ -367,6 +388,7 @@ public class KThread {
 	Lib.assertTrue(tcb == TCB.currentTCB());
 
 	Machine.autoGrader().runningThread(this);
+	ThreadedKernel.scheduler.runningThread(this);
 	
 	status = statusRunning;
 
@@ -462,6 +484,12 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The entry this thread is waiting on in the alarm, or <tt>null</tt> if it
+     * is not in <tt>Alarm.waitUntil()</tt>.
+     */
+    Alarm.Entry alarmEntry = null;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -487,6 +515,8 @@ public class KThread {
     private static int numCreated = 0;
 
     private static ThreadQueue readyQueue = null;
+    /** The number of threads on the ready queue. */
+    private static int numReadyThreads = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
@@ -2,12 +2,12 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Random;
-
 import java.util.TreeSet;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -27,7 +27,8 @@ import java.util.LinkedList;
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
- * the maximum).
+ * the maximum). A queue held in shared mode transfers all of its tickets to
+ * every thread holding it.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -37,18 +38,68 @@ public class LotteryScheduler extends PriorityScheduler {
         //super();
     }
 
+    public int getPriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getLThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        return getLThreadState(thread).getEffectivePriority();
+    }
+
     public void setPriority(KThread thread, int priority) {
         Lib.assertTrue(Machine.interrupt().disabled());
+
+        Lib.assertTrue(priority >= priorityMinimum &&
+                       priority <= priorityMaximum);
         
         getLThreadState(thread).setPriority(priority);
     }
+
+    public boolean increasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority < priorityMaximum);
+        if (changed)
+            setPriority(thread, priority+1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    public boolean decreasePriority() {
+        boolean intStatus = Machine.interrupt().disable();
+
+        KThread thread = KThread.currentThread();
+
+        int priority = getPriority(thread);
+        boolean changed = (priority > priorityMinimum);
+        if (changed)
+            setPriority(thread, priority-1);
+
+        Machine.interrupt().restore(intStatus);
+        return changed;
+    }
+
+    /**
+     * The minimum number of tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
     
     protected LotteryThreadState getLThreadState(KThread thread) {
         if (thread.schedulingState == null){
-            //System.out.println("New LThreadState");
             thread.schedulingState = new LotteryThreadState(thread);
         }
-        //thread.schedulingState = new LotteryThreadState(thread);
         return (LotteryThreadState) thread.schedulingState;
     }
 
@@ -61,10 +112,19 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	    // implement me
 	    return new LotteryQueue(transferPriority);
     }
 
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies a slot, and the tickets in each slot are
+     * kept in a Fenwick tree, so that the total, a change to one thread's
+     * tickets, and finding the holder of the winning ticket all take
+     * O(log n) time. The winning ticket is drawn with <tt>Lib.random()</tt>,
+     * so lotteries are reproducible under <tt>-s</tt>.
+     */
     protected class LotteryQueue extends ThreadQueue {
         LotteryQueue(boolean transferPriority){
             this.transferPriority = transferPriority;
@@ -74,71 +134,71 @@ public class LotteryScheduler extends PriorityScheduler {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			LotteryThreadState ts = getLThreadState(thread);
 			ts.waitForAccess(this);
-			if (this.holder != null){
-				//Donation
-				waitingThreads.add(ts);
-				if (transferPriority)
-					holder.calcEffectivePriority();
-			}else{
-				waitingThreads.add(ts);
-			}
-			//if (verbose) print();
+			add(ts);
+			updateDonation();
+			if (verbose) print();
 		}
 
         public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			Lib.assertTrue(waitingThreads.isEmpty());
+			Lib.assertTrue(size == 0 && !isShared());
 			getLThreadState(thread).acquire(this);
 			this.holder = getLThreadState(thread);
 			if (verbose) print();
 		}
 
+        public void acquireShared(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(holder == null);
+			if (sharedHolders == null)
+				sharedHolders = new ArrayList<LotteryThreadState>();
+			if (sharedHolders.isEmpty())
+				donation = getThreadPriority();
+
+			LotteryThreadState ts = getLThreadState(thread);
+			sharedHolders.add(ts);
+			ts.donations += donation;
+			ts.updateEffectivePriority();
+			if (verbose) print();
+		}
+
+        public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			LotteryThreadState ts = getLThreadState(thread);
+			if (holder == ts) {
+				holder = null;
+				ts.relinquish(this);
+			}
+			else {
+				Lib.assertTrue(isShared() && sharedHolders.remove(ts));
+				ts.donations -= donation;
+				ts.updateEffectivePriority();
+			}
+
+			if (!isShared())
+				donation = getThreadPriority();
+			if (verbose) print();
+		}
+
         public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			LotteryThreadState nextT;
-			LotteryThreadState lts = null;
-            int total_lottery = 0;
-            for (LotteryThreadState ts : waitingThreads){
-                if (transferPriority){
-                    total_lottery += ts.getEffectivePriority();
-                }else{
-                    total_lottery += ts.getPriority();
-                }
-            }
-            Random rand = new Random();
-            int choice = rand.nextInt(total_lottery)+1;
-            int sub_sum = 0;
-            for (LotteryThreadState ts : waitingThreads){
-                if (transferPriority){
-                    sub_sum += ts.getEffectivePriority();
-                }else{
-                    sub_sum += ts.getPriority();
-                }
-                if (sub_sum >= choice){
-                    lts = ts;
-                    break;
-                }
-            }
-            nextT = lts;
-			waitingThreads.remove(nextT);
-			/* End*/
-
-			if (holder == null){
-				//Strange, should call acquire() instead
-			}else{
-				Lib.assertTrue(this.holder != null);
+
+			Lib.assertTrue(!isShared());
+
+			LotteryThreadState nextT = draw();
+			if (nextT != null)
+				remove(nextT);
+
+			if (holder != null)
 				this.holder.relinquish(this);
-			}
-			
 
 			if (nextT==null){
 				this.holder = null;
 				if (verbose) print();
 				return null;
 			}
-			//nextT = this.waitingThreads.poll();
 			
-			//this.acquire(nextT.thread);
 			nextT.acquire(this);
 			this.holder = nextT;
 			if (verbose) print();
@@ -148,51 +208,210 @@ public class LotteryScheduler extends PriorityScheduler {
         public void updateThreadPriority(LotteryThreadState st){
 			Lib.assertTrue(Machine.interrupt().disabled());
 			//Called when st changes
-			if (transferPriority && this.holder!=null){
-				this.holder.calcEffectivePriority();
-			}				
+			reposition(st);
+			updateDonation();
 		}
 
+        /**
+         * Return the number of tickets this queue transfers to its holder,
+         * which is at most <tt>priorityMaximum</tt>.
+         */
         public int getThreadPriority(){
-			if (!transferPriority){
-				return -1;
-			}
-			/* Alternative: iterate*/
-			int total_priority = 0;
-			for (LotteryThreadState ts : waitingThreads){
-				int tempPrior;
-				if (transferPriority){
-					tempPrior = ts.getEffectivePriority();
-				}else{
-					tempPrior = ts.getPriority();
-				}
-                total_priority += tempPrior;
-			}
-			return total_priority;
-			/* End*/
+			return transferPriority ? (int) Math.min(total, priorityMaximum) : 0;
 		}
         
         protected ThreadState pickNextThread() {
-			// implement me
-			/* Alternative: iterate*/
+			// a lottery has no next thread until it is drawn
 			return null;
-			//return this.waitingThreads.peek();
 		}
 
         public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
-			for (LotteryThreadState ts : waitingThreads){
-				System.out.print(ts.thread + " <"+ts.getPriority()+","+ts.getEffectivePriority()+"> ");
+			for (int i=0; i<used; i++){
+				LotteryThreadState ts = slots[i];
+				if (ts != null)
+					System.out.print(ts.thread + " <"+ts.getPriority()+","+ts.getEffectivePriority()+"> ");
+			}
+			if (isShared()) {
+				System.out.print("Shared holders:");
+				for (LotteryThreadState ts : sharedHolders)
+					System.out.print(" "+ts.thread+" <"+ts.getPriority()+","+ts.getEffectivePriority()+">");
+				System.out.println();
 			}
-			if (holder==null)
+			else if (holder==null)
 				System.out.println("Holder: null");
 			else
 				System.out.println("Holder: "+holder.thread+" <"+holder.getPriority()+","+holder.getEffectivePriority()+"> ");
 		}
 
-        public java.util.LinkedList<LotteryThreadState> waitingThreads = new java.util.LinkedList<LotteryThreadState>();
+        /**
+         * The number of tickets a waiting thread holds in this lottery: its
+         * effective tickets if this queue transfers them, or else its own.
+         */
+        private int ticketsOf(LotteryThreadState ts) {
+			return transferPriority ? ts.getEffectivePriority() : ts.getPriority();
+		}
+
+        private void add(LotteryThreadState ts) {
+			int slot;
+			if (freeSlots > 0) {
+				slot = free[--freeSlots];
+			}
+			else {
+				if (used == slots.length)
+					grow();
+				slot = used++;
+			}
+
+			slots[slot] = ts;
+			ts.slot = slot;
+			ts.tickets = ticketsOf(ts);
+			addTickets(slot, ts.tickets);
+			size++;
+		}
+
+        private void remove(LotteryThreadState ts) {
+			addTickets(ts.slot, -ts.tickets);
+			slots[ts.slot] = null;
+			free[freeSlots++] = ts.slot;
+			ts.slot = -1;
+			size--;
+		}
+
+        /**
+         * Update the tickets a waiting thread holds after its priority or
+         * effective priority has changed.
+         */
+        void reposition(LotteryThreadState ts) {
+			if (ts.slot < 0 || slots[ts.slot] != ts)
+				return;
+
+			int tickets = ticketsOf(ts);
+			if (tickets != ts.tickets) {
+				addTickets(ts.slot, (long) tickets - ts.tickets);
+				ts.tickets = tickets;
+			}
+		}
+
+        /**
+         * Bring the tickets this queue transfers to its holder up to date,
+         * and propagate any change along the chain of holders.
+         */
+        private void updateDonation() {
+			if (isShared()) {
+				updateSharedDonation();
+				return;
+			}
+			if (holder == null) {
+				donation = getThreadPriority();
+				return;
+			}
+
+			if (holder.changeDonation(this))
+				holder.updateEffectivePriority();
+		}
+
+        /**
+         * Bring the tickets this queue transfers to each of its shared
+         * holders up to date, and propagate any change along their chains of
+         * holders.
+         */
+        void updateSharedDonation() {
+			int newDonation = getThreadPriority();
+			if (newDonation == donation)
+				return;
+
+			long delta = (long) newDonation - donation;
+			donation = newDonation;
+			for (LotteryThreadState ts : sharedHolders) {
+				ts.donations += delta;
+				ts.updateEffectivePriority();
+			}
+		}
+
+        /** Return <tt>true</tt> if any thread holds this queue shared. */
+        boolean isShared() {
+			return sharedHolders != null && !sharedHolders.isEmpty();
+		}
+
+        /**
+         * Draw a winning ticket, and return the thread holding it, or
+         * <tt>null</tt> if no threads are waiting.
+         */
+        private LotteryThreadState draw() {
+			if (size == 0)
+				return null;
+
+			// with no tickets at all, every waiting thread is equally likely
+			if (total == 0) {
+				int choice = Lib.random(size);
+				for (int i=0; i<used; i++) {
+					if (slots[i] != null && choice-- == 0)
+						return slots[i];
+				}
+			}
+
+			// find the slot holding ticket number <choice>
+			long choice = Lib.random(total);
+			int slot = 0;
+			for (int step = Integer.highestOneBit(tree.length-1); step > 0;
+			     step >>= 1) {
+				int next = slot + step;
+				if (next < tree.length && tree[next] <= choice) {
+					slot = next;
+					choice -= tree[next];
+				}
+			}
+
+			Lib.assertTrue(slots[slot] != null);
+			return slots[slot];
+		}
+
+        /** Add <i>delta</i> tickets to the specified slot. */
+        private void addTickets(int slot, long delta) {
+			total += delta;
+			for (int i = slot+1; i < tree.length; i += i & -i)
+				tree[i] += delta;
+		}
+
+        private void grow() {
+			int capacity = slots.length * 2;
+			slots = Arrays.copyOf(slots, capacity);
+			free = Arrays.copyOf(free, capacity);
+
+			// rebuild the tree over the larger array in linear time
+			tree = new long[capacity+1];
+			for (int i=0; i<used; i++) {
+				if (slots[i] != null)
+					tree[i+1] += slots[i].tickets;
+			}
+			for (int i=1; i<tree.length; i++) {
+				int parent = i + (i & -i);
+				if (parent < tree.length)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/**
+		* The tickets this queue currently transfers to its holder, or to each
+		* of its shared holders, as counted in their <tt>donations</tt>.
+		*/
+		int donation = 0;
+
+		/** The waiting threads, indexed by slot. */
+		private LotteryThreadState[] slots = new LotteryThreadState[8];
+		/** A Fenwick tree over the tickets in each slot. */
+		private long[] tree = new long[slots.length+1];
+		/** Slots below <tt>used</tt> that are empty. */
+		private int[] free = new int[slots.length];
+		private int freeSlots = 0;
+		private int used = 0;
+		private int size = 0;
+		private long total = 0;
+
 		public LotteryThreadState holder; //Current holder of resource
+		/** The threads holding this queue shared, or <tt>null</tt>. */
+		private ArrayList<LotteryThreadState> sharedHolders = null;
 
 		/**
 		* <tt>true</tt> if this queue should transfer priority from waiting
@@ -207,10 +426,8 @@ public class LotteryScheduler extends PriorityScheduler {
     protected class LotteryThreadState{
 
         public LotteryThreadState(KThread thread) {
-            //super(thread);
 			this.thread = thread;
 			setPriority(priorityDefault);
-			this.effectivePriority = priority;
 		}
         /**
 		* Return the priority of the associated thread.
@@ -222,28 +439,70 @@ public class LotteryScheduler extends PriorityScheduler {
 		}
 
         /**
-		* Return the effective priority of the associated thread.
+		* Recompute the effective priority of the associated thread, and
+		* propagate any change to the threads it is waiting on.
 		*
 		* @return	the effective priority of the associated thread.
 		*/
 		public int calcEffectivePriority(){
-			int sumPriority = this.priority;
-			for (LotteryQueue pq : acquiredResource){
-				int tempPrior = pq.getThreadPriority();
-				sumPriority += tempPrior;
+			updateEffectivePriority();
+			return effectivePriority;
+		}
+
+        /**
+		* Recompute the effective priority of the associated thread, which is
+		* its own tickets plus those transferred by the queues it holds, up to
+		* <tt>priorityMaximum</tt>. A change is passed on to the queue it
+		* waits on, and from there to that queue's holder, and so on until
+		* nothing changes. A queue held shared updates each of its holders
+		* this way in turn.
+		*/
+		void updateEffectivePriority() {
+			LotteryThreadState ts = this;
+			while (true) {
+				int newPriority = (int) Math.min(ts.priority + ts.donations,
+								 priorityMaximum);
+				if (newPriority == ts.effectivePriority)
+					return;
+				ts.effectivePriority = newPriority;
+
+				LotteryQueue waitQueue = ts.waitingResource;
+				if (waitQueue == null)
+					return;
+				waitQueue.reposition(ts);
+
+				if (waitQueue.isShared()) {
+					waitQueue.updateSharedDonation();
+					return;
+				}
+				ts = waitQueue.holder;
+				if (ts == null) {
+					waitQueue.donation = waitQueue.getThreadPriority();
+					return;
+				}
+				// a cycle of waiting threads would transfer tickets forever
+				if (!ts.changeDonation(waitQueue) || ts == this)
+					return;
 			}
-			if ((sumPriority != this.effectivePriority) && (this.waitingResource != null)){
-				this.effectivePriority = sumPriority;
-				//TODO: if increase, need to pass this to waitingResource
-				this.waitingResource.updateThreadPriority(this);
-			}else{
-				this.effectivePriority = sumPriority;
-			}	
-			return sumPriority;
+		}
+
+		/**
+		* Replace the tickets counted for a queue this thread holds with what
+		* the queue transfers now.
+		*
+		* @return	<tt>true</tt> if the transfer changed.
+		*/
+		boolean changeDonation(LotteryQueue heldQueue) {
+			int newDonation = heldQueue.getThreadPriority();
+			if (newDonation == heldQueue.donation)
+				return false;
+
+			donations += (long) newDonation - heldQueue.donation;
+			heldQueue.donation = newDonation;
+			return true;
 		}
 
         public int getEffectivePriority() {
-			// implement me
 			return effectivePriority;
 		}
         /**
@@ -255,30 +514,30 @@ public class LotteryScheduler extends PriorityScheduler {
 			if (this.priority == priority)
 			    return;
 			this.priority = priority;
-			// implement me
-			this.effectivePriority = calcEffectivePriority();
+
+			// queues that don't transfer tickets hold a lottery over these
+			if (this.waitingResource != null)
+				this.waitingResource.reposition(this);
+
+			updateEffectivePriority();
 		}
 
         public void waitForAccess(LotteryQueue waitQueue) {
-			// implement me
 			Lib.assertTrue(this.waitingResource == null);
 			this.waitingResource = waitQueue;
 		}
 
 		public void acquire(LotteryQueue waitQueue) {
-			// implement me
-			this.acquiredResource.add(waitQueue);
 			this.waitingResource = null;
-			LotteryThreadState prev = waitQueue.holder;
-			if (prev==null)
-				return;
-			this.calcEffectivePriority();
-			//prev.calcEffectivePriority();
+			waitQueue.donation = waitQueue.getThreadPriority();
+			donations += waitQueue.donation;
+			updateEffectivePriority();
 		}	
 
 		public void relinquish(LotteryQueue acqQueue){
-			this.acquiredResource.remove(acqQueue);
-			this.calcEffectivePriority();
+			donations -= acqQueue.donation;
+			acqQueue.donation = 0;
+			updateEffectivePriority();
 		}
 
 		
@@ -287,9 +546,15 @@ public class LotteryScheduler extends PriorityScheduler {
 		/** The priority of the associated thread. */
 		public int effectivePriority;
 		protected int priority;
-		
-		protected HashSet<LotteryQueue> acquiredResource = new HashSet<LotteryQueue>(); //Acquired resources
+
+		/** The total tickets transferred by the queues this thread holds. */
+		private long donations = 0;
 		protected LotteryQueue waitingResource = null; //Resource currently waiting for
+
+		/** This thread's slot in <tt>waitingResource</tt>'s lottery. */
+		int slot = -1;
+		/** The tickets this thread holds in that lottery. */
+		int tickets;
     }
     
 
@@ -385,11 +650,64 @@ public class LotteryScheduler extends PriorityScheduler {
 		Q2.print();
 
 
+		Machine.interrupt().restore(intStatus);
+	}
+
+    private static void test3(){
+		//Test3: Test that threads win in proportion to their tickets
+		System.out.println("----- LotteryQueue TEST3 -----");
+		boolean intStatus = Machine.interrupt().disable();
+
+		LotteryScheduler scheduler = new LotteryScheduler();
+		ThreadQueue waitQueue = scheduler.newThreadQueue(false);
+		KThread t1 = new KThread(new Tester(1)).setName("thread 1");
+		KThread t2 = new KThread(new Tester(2)).setName("thread 2");
+		scheduler.setPriority(t1,1);
+		scheduler.setPriority(t2,3);
+
+		int rounds = 4000, wins = 0;
+		for (int i=0; i<rounds; i++){
+			waitQueue.waitForAccess(t1);
+			waitQueue.waitForAccess(t2);
+			if (waitQueue.nextThread() == t1)
+				wins++;
+			waitQueue.nextThread();
+			waitQueue.nextThread();
+		}
+		System.out.println("thread 1 won "+wins+" of "+rounds);
+		Lib.assertTrue(wins > rounds/5 && wins < rounds*3/10);
+
+		// tickets transferred beyond the int range saturate
+		ThreadQueue lockQueue = scheduler.newThreadQueue(true);
+		ThreadQueue otherQueue = scheduler.newThreadQueue(true);
+		KThread holder = new KThread(new Tester(3)).setName("holder");
+		KThread t4 = new KThread(new Tester(4)).setName("thread 4");
+		scheduler.setPriority(t1,priorityMaximum);
+		scheduler.setPriority(t2,priorityMaximum-1);
+		lockQueue.acquire(holder);
+		lockQueue.waitForAccess(t1);
+		lockQueue.waitForAccess(t2);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityMaximum);
+
+		// and the holder's tickets are still drawn correctly
+		KThread t5 = new KThread(new Tester(5)).setName("thread 5");
+		otherQueue.acquire(t4);
+		otherQueue.waitForAccess(t5);
+		otherQueue.waitForAccess(holder);
+		Lib.assertTrue(scheduler.getEffectivePriority(t4) == priorityMaximum);
+		Lib.assertTrue(otherQueue.nextThread() == holder);
+		otherQueue.nextThread();
+		otherQueue.nextThread();
+
+		Lib.assertTrue(lockQueue.nextThread() != null);
+		Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityDefault);
+
 		Machine.interrupt().restore(intStatus);
 	}
 
     public static void selfTest(){
         test1();
         test2();
+        test3();
     }
 }
@@ -0,0 +1,335 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Every thread is at one of several
+ * levels, and a queue always gives access to a thread at the highest level
+ * with threads waiting, first-come first-served within a level.
+ *
+ * <p>
+ * Threads start at the top level. The scheduler watches how long each thread
+ * runs between being given the processor and giving it up, using
+ * <tt>Machine.timer()</tt>. A thread that uses up its allotment at a level,
+ * by being preempted from <tt>Alarm.timerInterrupt()</tt> often enough, moves
+ * down a level; each level down has twice the allotment of the one above it.
+ * A thread that blocks before using one quantum, as it would waiting on a
+ * <tt>SynchConsole</tt> or the network, moves up a level. So interactive
+ * threads stay near the top, and threads that only compute sink to the
+ * bottom.
+ *
+ * <p>
+ * To keep threads at the bottom from starving, every thread is boosted back
+ * to the top level periodically. The boost is applied lazily, as threads and
+ * queues are next used, so that it takes constant time.
+ *
+ * <p>
+ * The number of levels, the quantum at the top level, and the time between
+ * boosts are set by <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.boostInterval</tt>.
+ * This scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 4);
+	quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  50*Stats.TimerTicks);
+
+	Lib.assertTrue(levels >= 1 && levels <= 32);
+	Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new multi-level queue.
+     *
+     * @param	transferPriority	ignored. This scheduler does not
+     *					transfer priority.
+     * @return	a new multi-level queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread. Threads at the top level
+     * have the highest priority, <tt>levels-1</tt>, and threads at the bottom
+     * level have priority 0.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	state.refresh();
+	return levels - 1 - state.level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Charge the thread that was running, if it is the one yielding.
+     */
+    public void readyThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	if (state == running) {
+	    charge(state, Machine.timer().getTime() - state.dispatchTime,
+		   false);
+	    running = null;
+	}
+    }
+
+    /**
+     * Charge the thread that was running, if it did not yield, since then it
+     * blocked or finished. Then start timing this thread, and boost every
+     * thread if it is time to.
+     */
+    public void runningThread(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	if (running != null)
+	    charge(running, time - running.dispatchTime, true);
+
+	if (time >= nextBoost) {
+	    epoch++;
+	    nextBoost = time + boostInterval;
+	}
+
+	running = getThreadState(thread);
+	running.dispatchTime = time;
+    }
+
+    /**
+     * Account for a thread having run for <i>used</i> ticks, moving it down a
+     * level if it has used up its allotment, or up a level if it blocked
+     * before using one quantum.
+     *
+     * @param	state	the thread that ran.
+     * @param	used	the number of ticks it ran for.
+     * @param	blocked	<tt>true</tt> if it gave up the processor by
+     *			blocking, rather than yielding.
+     */
+    void charge(ThreadState state, long used, boolean blocked) {
+	state.refresh();
+
+	state.allotment += used;
+	if (state.allotment >= ((long) quantum << state.level)) {
+	    if (state.level < levels-1)
+		state.level++;
+	    state.allotment = 0;
+	}
+	else if (blocked && used < quantum && state.level > 0) {
+	    state.level--;
+	    state.allotment = 0;
+	}
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A queue with a FIFO list for each level, linked through the waiting
+     * threads' states, and a bitmask of the levels that are not empty.
+     */
+    private class MultiLevelQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(!state.queued);
+
+	    catchUp();
+	    state.refresh();
+
+	    int level = state.level;
+	    if (tail[level] == null)
+		head[level] = state;
+	    else
+		tail[level].next = state;
+	    tail[level] = state;
+	    nonEmpty |= 1 << level;
+
+	    state.queued = true;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    catchUp();
+	    if (nonEmpty == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(nonEmpty);
+	    ThreadState state = head[level];
+	    head[level] = state.next;
+	    if (head[level] == null) {
+		tail[level] = null;
+		nonEmpty &= ~(1 << level);
+	    }
+
+	    state.next = null;
+	    state.queued = false;
+	    return state.thread;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(nonEmpty == 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<levels; level++) {
+		for (ThreadState state=head[level]; state!=null;
+		     state=state.next)
+		    System.out.print(state.thread + " <" + level + "> ");
+	    }
+	}
+
+	/**
+	 * If every thread has been boosted since this queue was last used,
+	 * append the lower levels to the top level, keeping their order.
+	 */
+	private void catchUp() {
+	    if (queueEpoch == epoch)
+		return;
+	    queueEpoch = epoch;
+
+	    for (int level=1; level<levels; level++) {
+		if (head[level] == null)
+		    continue;
+
+		if (tail[0] == null)
+		    head[0] = head[level];
+		else
+		    tail[0].next = head[level];
+		tail[0] = tail[level];
+		head[level] = tail[level] = null;
+	    }
+	    nonEmpty = (head[0] == null) ? 0 : 1;
+	}
+
+	private ThreadState[] head = new ThreadState[levels];
+	private ThreadState[] tail = new ThreadState[levels];
+	private int nonEmpty = 0;
+	private int queueEpoch = epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, how much of its allotment
+     * at that level it has used, and its link in the queue it waits on.
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts at the top level.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Move this thread to the top level if every thread has been boosted
+	 * since this state was last used.
+	 */
+	void refresh() {
+	    if (stateEpoch != epoch) {
+		stateEpoch = epoch;
+		level = 0;
+		allotment = 0;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of this thread, 0 being the top. */
+	protected int level = 0;
+	/** The ticks this thread has run for at its level. */
+	protected long allotment = 0;
+
+	private long dispatchTime;
+	private int stateEpoch = epoch;
+	private boolean queued = false;
+	private ThreadState next = null;
+    }
+
+    private static class Tester implements Runnable {
+	public void run() {
+	}
+    }
+
+    /**
+     * Test that threads that use up their allotment move down, that threads
+     * that block early move up, and that a boost brings every thread back to
+     * the top.
+     */
+    public static void selfTest() {
+	System.out.println("----- MLFQScheduler TEST -----");
+	boolean intStatus = Machine.interrupt().disable();
+
+	MLFQScheduler scheduler = new MLFQScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread hog = new KThread(new Tester()).setName("hog");
+	KThread shell = new KThread(new Tester()).setName("shell");
+	ThreadState hogState = scheduler.getThreadState(hog);
+	ThreadState shellState = scheduler.getThreadState(shell);
+
+	// the hog is preempted after every quantum, the shell blocks early
+	for (int i=0; i<(1<<scheduler.levels); i++) {
+	    scheduler.charge(hogState, scheduler.quantum, false);
+	    scheduler.charge(shellState, scheduler.quantum/10, true);
+	}
+	Lib.assertTrue(scheduler.getPriority(hog) == 0);
+	Lib.assertTrue(scheduler.getPriority(shell) == scheduler.levels-1);
+
+	queue.waitForAccess(hog);
+	queue.waitForAccess(shell);
+	Lib.assertTrue(queue.nextThread() == shell);
+	Lib.assertTrue(queue.nextThread() == hog);
+
+	// a boost moves waiting threads to the top, in order
+	queue.waitForAccess(hog);
+	scheduler.epoch++;
+	queue.waitForAccess(shell);
+	Lib.assertTrue(scheduler.getPriority(hog) == scheduler.levels-1);
+	Lib.assertTrue(queue.nextThread() == hog);
+	Lib.assertTrue(queue.nextThread() == shell);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private int levels;
+    private int quantum;
+    private long boostInterval;
+
+    /** The number of boosts so far. */
+    private int epoch = 0;
+    private long nextBoost;
+    /** The running thread, if it has not been charged yet. */
+    private ThreadState running = null;
+}
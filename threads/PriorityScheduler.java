@@ -6,9 +6,11 @@ import java.util.Comparator;
 
 import java.util.TreeSet;
 import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.LinkedList;
 //import java.util.PriorityQueue;
 import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -29,6 +31,8 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * A queue held in shared mode, such as a <tt>ReadWriteLock</tt> held by
+ * readers, donates to every thread holding it.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -128,6 +132,13 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in a binary heap ordered by priority, and then
+     * by the order in which they started waiting, so that the next thread,
+     * and the highest priority to donate, are always at the root. Each thread
+     * records its position in the heap, so a thread whose priority changes
+     * can be moved in O(log n) time.
      */
     protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -138,14 +149,8 @@ public class PriorityScheduler extends Scheduler {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			ThreadState ts = getThreadState(thread);
 			ts.waitForAccess(this);
-			if ((this.holder != null) && (ts.effectivePriority > this.getThreadPriority())){
-				//Donation
-				waitingThreads.add(ts);
-				if (transferPriority)
-					holder.calcEffectivePriority();
-			}else{
-				waitingThreads.add(ts);
-			}
+			add(ts);
+			updateDonation();
 			
 			if (verbose) print();
 		}
@@ -153,38 +158,53 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			Lib.assertTrue(waitingThreads.isEmpty());
+			Lib.assertTrue(size == 0 && !isShared());
 			getThreadState(thread).acquire(this);
 			this.holder = getThreadState(thread);
 			if (verbose) print();
 		}
 
-		public KThread nextThread() {
+		public void acquireShared(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			
-			//ThreadState nextT = waitingThreads.poll();//this.pickNextThread();
-			ThreadState nextT;
-			/* Alternative: iterate*/
-			int maxPriority = 0;
-			ThreadState argmax = null;
-			int index = -1;
-			for (ThreadState ts : waitingThreads){
-				index++;
-				int tempPrior;
-				if (transferPriority){
-					tempPrior = ts.getEffectivePriority();
-				}else{
-					tempPrior = ts.getPriority();
-				}
-				if (tempPrior > maxPriority){
-					maxPriority = tempPrior;
-					argmax = ts;
-				}
+
+			Lib.assertTrue(holder == null);
+			if (sharedHolders == null)
+				sharedHolders = new ArrayList<ThreadState>();
+			if (sharedHolders.isEmpty())
+				donation = getThreadPriority();
+
+			ThreadState ts = getThreadState(thread);
+			sharedHolders.add(ts);
+			ts.addDonation(donation);
+			ts.updateEffectivePriority();
+			if (verbose) print();
+		}
+
+		public void release(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState ts = getThreadState(thread);
+			if (holder == ts) {
+				holder = null;
+				ts.relinquish(this);
 			}
-			nextT = argmax;
-			waitingThreads.remove(argmax);
-			/* End*/
+			else {
+				Lib.assertTrue(isShared() && sharedHolders.remove(ts));
+				ts.removeDonation(donation);
+				ts.updateEffectivePriority();
+			}
+
+			if (!isShared())
+				donation = getThreadPriority();
+			if (verbose) print();
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(!isShared());
+
+			ThreadState nextT = (size == 0) ? null : removeAt(0);
 
 			if (holder == null){
 				//Strange, should call acquire() instead
@@ -199,9 +219,7 @@ public class PriorityScheduler extends Scheduler {
 				if (verbose) print();
 				return null;
 			}
-			//nextT = this.waitingThreads.poll();
 			
-			//this.acquire(nextT.thread);
 			nextT.acquire(this);
 			this.holder = nextT;
 			if (verbose) print();
@@ -211,43 +229,77 @@ public class PriorityScheduler extends Scheduler {
 		public void updateThreadPriority(ThreadState st){
 			Lib.assertTrue(Machine.interrupt().disabled());
 			//Called when st changes
-			
-			//boolean removeFlag = waitingThreads.remove(st);
-			//Lib.assertTrue(removeFlag);
-			//waitingThreads.add(st);
 
-			if (transferPriority && this.holder!=null){
-				this.holder.calcEffectivePriority();
+			reposition(st);
+			updateDonation();
+		}
+
+		/**
+		* Move a waiting thread whose priority may have changed to its new
+		* place in the heap.
+		*/
+		void reposition(ThreadState st) {
+			if (st.queueIndex >= 0 && heap[st.queueIndex] == st) {
+				int key = keyOf(st);
+				if (key != st.queueKey) {
+					st.queueKey = key;
+					siftUp(st.queueIndex);
+					siftDown(st.queueIndex);
+				}
 			}
-				
 		}
 
-		public int getThreadPriority(){
-			if (!transferPriority){
-				return -1;
+		/**
+		* Bring the priority this queue donates to its holder up to date, and
+		* propagate any change along the chain of holders.
+		*/
+		private void updateDonation() {
+			if (isShared()) {
+				updateSharedDonation();
+				return;
 			}
-			/* Alternative: iterate*/
-			int maxPriority = -1;
-			ThreadState argmax = null;
-			for (ThreadState ts : waitingThreads){
-				int tempPrior;
-				if (transferPriority){
-					tempPrior = ts.getEffectivePriority();
-				}else{
-					tempPrior = ts.getPriority();
-				}
-				if (tempPrior > maxPriority){
-					maxPriority = tempPrior;
-					argmax = ts;
-				}
+			if (holder == null) {
+				donation = getThreadPriority();
+				return;
 			}
-			return maxPriority;
-			/* End*/
 
-			//ThreadState top = this.waitingThreads.peek();
-			//if (top == null)
-			//	return -1;
-			//return top.effectivePriority;
+			if (holder.changeDonation(this))
+				holder.updateEffectivePriority();
+		}
+
+		/**
+		* Bring the priority this queue donates to each of its shared holders
+		* up to date, and propagate any change along their chains of holders.
+		*/
+		void updateSharedDonation() {
+			int newDonation = getThreadPriority();
+			if (newDonation == donation)
+				return;
+
+			int oldDonation = donation;
+			donation = newDonation;
+			for (ThreadState ts : sharedHolders) {
+				ts.removeDonation(oldDonation);
+				ts.addDonation(newDonation);
+				ts.updateEffectivePriority();
+			}
+		}
+
+		/** Return <tt>true</tt> if any thread holds this queue shared. */
+		boolean isShared() {
+			return sharedHolders != null && !sharedHolders.isEmpty();
+		}
+
+		/**
+		* Return the highest priority of any thread waiting on this queue,
+		* which is what it donates to its holder, or -1 if no priority is
+		* donated.
+		*/
+		public int getThreadPriority(){
+			if (!transferPriority || size == 0){
+				return -1;
+			}
+			return heap[0].queueKey;
 		}
 
 		/**
@@ -258,43 +310,124 @@ public class PriorityScheduler extends Scheduler {
 		*		return.
 		*/
 		protected ThreadState pickNextThread() {
-			// implement me
-
-			/* Alternative: iterate*/
-			int maxPriority = 0;
-			ThreadState argmax = null;
-			for (ThreadState ts : waitingThreads){
-				int tempPrior;
-				if (transferPriority){
-					tempPrior = ts.getEffectivePriority();
-				}else{
-					tempPrior = ts.getPriority();
-				}
-				if (tempPrior > maxPriority){
-					maxPriority = tempPrior;
-					argmax = ts;
-				}
-			}
-			return argmax;
-			//return this.waitingThreads.peek();
+			return (size == 0) ? null : heap[0];
 		}
 		
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
-			for (ThreadState ts : waitingThreads){
+			// print the waiting threads in the order they arrived
+			ThreadState[] waiting = Arrays.copyOf(heap, size);
+			Arrays.sort(waiting, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return (a.queueSeq < b.queueSeq) ? -1 :
+						(a.queueSeq > b.queueSeq) ? 1 : 0;
+				}
+			});
+			for (ThreadState ts : waiting){
 				System.out.print(ts.thread + " <"+ts.getPriority()+","+ts.getEffectivePriority()+"> ");
 			}
-			if (holder==null)
+			if (isShared()) {
+				System.out.print("Shared holders:");
+				for (ThreadState ts : sharedHolders)
+					System.out.print(" "+ts.thread+" <"+ts.getPriority()+","+ts.getEffectivePriority()+">");
+				System.out.println();
+			}
+			else if (holder==null)
 				System.out.println("Holder: null");
 			else
 				System.out.println("Holder: "+holder.thread+" <"+holder.getPriority()+","+holder.getEffectivePriority()+"> ");
-			//System.out.println("");
 		}
 
-		//public java.util.PriorityQueue<ThreadState> waitingThreads = new java.util.PriorityQueue<ThreadState>();
-		public java.util.LinkedList<ThreadState> waitingThreads = new java.util.LinkedList<ThreadState>();
+		/**
+		* The priority a waiting thread is ordered by: its effective
+		* priority, whether or not this queue transfers priority, so that a
+		* thread holding a lock that others need is chosen sooner from the
+		* ready queue and from semaphores too.
+		*/
+		private int keyOf(ThreadState ts) {
+			return ts.getEffectivePriority();
+		}
+
+		private void add(ThreadState ts) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size*2);
+
+			ts.queueKey = keyOf(ts);
+			ts.queueSeq = nextSeq++;
+			ts.queueIndex = size;
+			heap[size++] = ts;
+			siftUp(ts.queueIndex);
+		}
+
+		private ThreadState removeAt(int i) {
+			ThreadState ts = heap[i];
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (last != ts) {
+				heap[i] = last;
+				last.queueIndex = i;
+				siftUp(i);
+				siftDown(last.queueIndex);
+			}
+
+			ts.queueIndex = -1;
+			return ts;
+		}
+
+		/** Return <tt>true</tt> if <i>a</i> should leave before <i>b</i>. */
+		private boolean before(ThreadState a, ThreadState b) {
+			return a.queueKey > b.queueKey ||
+				(a.queueKey == b.queueKey && a.queueSeq < b.queueSeq);
+		}
+
+		private void siftUp(int i) {
+			ThreadState ts = heap[i];
+			while (i > 0) {
+				int parent = (i-1)/2;
+				if (!before(ts, heap[parent]))
+					break;
+				place(heap[parent], i);
+				i = parent;
+			}
+			place(ts, i);
+		}
+
+		private void siftDown(int i) {
+			ThreadState ts = heap[i];
+			while (true) {
+				int child = 2*i+1;
+				if (child >= size)
+					break;
+				if (child+1 < size && before(heap[child+1], heap[child]))
+					child++;
+				if (!before(heap[child], ts))
+					break;
+				place(heap[child], i);
+				i = child;
+			}
+			place(ts, i);
+		}
+
+		private void place(ThreadState ts, int i) {
+			heap[i] = ts;
+			ts.queueIndex = i;
+		}
+
+		/**
+		* The priority this queue currently donates to its holder, as counted
+		* in the holder's <tt>donations</tt>, or -1 for none.
+		*/
+		int donation = -1;
+
+		/** The waiting threads, as a binary heap. */
+		private ThreadState[] heap = new ThreadState[8];
+		private int size = 0;
+		private long nextSeq = 0;
+
 		public ThreadState holder; //Current holder of resource
+		/** The threads holding this queue shared, or <tt>null</tt>. */
+		private ArrayList<ThreadState> sharedHolders = null;
 
 		/**
 		* <tt>true</tt> if this queue should transfer priority from waiting
@@ -339,28 +472,79 @@ public class PriorityScheduler extends Scheduler {
 		}
 
 		/**
-		* Return the effective priority of the associated thread.
+		* Recompute the effective priority of the associated thread, and
+		* propagate any change to the threads it is waiting on.
 		*
 		* @return	the effective priority of the associated thread.
 		*/
 		public int calcEffectivePriority(){
-			int maxPriority = priority;
-			for (PriorityQueue pq : acquiredResource){
-				int tempPrior = pq.getThreadPriority();
-				if (tempPrior > maxPriority){
-					maxPriority = tempPrior;
+			updateEffectivePriority();
+			return effectivePriority;
+		}
+
+		/**
+		* Recompute the effective priority of the associated thread from its
+		* own priority and the donations it holds. If it changes, the thread
+		* is moved within the queue it waits on, and that queue's donation to
+		* its holder is updated in turn. This walks the chain of holders one
+		* thread at a time, and stops as soon as a priority or donation is
+		* left unchanged. A queue held shared updates each of its holders
+		* this way in turn.
+		*/
+		void updateEffectivePriority() {
+			ThreadState ts = this;
+			while (true) {
+				int top = (ts.donationMask == 0) ? -1 :
+					31 - Integer.numberOfLeadingZeros(ts.donationMask);
+				int newPriority = Math.max(ts.priority, top);
+				if (newPriority == ts.effectivePriority)
+					return;
+				ts.effectivePriority = newPriority;
+
+				PriorityQueue waitQueue = ts.waitingResource;
+				if (waitQueue == null)
+					return;
+				waitQueue.reposition(ts);
+
+				if (waitQueue.isShared()) {
+					waitQueue.updateSharedDonation();
+					return;
 				}
+				ts = waitQueue.holder;
+				if (ts == null) {
+					waitQueue.donation = waitQueue.getThreadPriority();
+					return;
+				}
+				if (!ts.changeDonation(waitQueue))
+					return;
 			}
-			if ((maxPriority != this.effectivePriority) && (this.waitingResource != null)){
-				this.effectivePriority = maxPriority;
-				//TODO: if increase, need to pass this to waitingResource
-				this.waitingResource.updateThreadPriority(this);
-			}else{
-				this.effectivePriority = maxPriority;
-			}
-			
-			
-			return maxPriority;
+		}
+
+		/**
+		* Replace the donation counted for a queue this thread holds with
+		* what the queue donates now.
+		*
+		* @return	<tt>true</tt> if the donation changed.
+		*/
+		boolean changeDonation(PriorityQueue heldQueue) {
+			int newDonation = heldQueue.getThreadPriority();
+			if (newDonation == heldQueue.donation)
+				return false;
+
+			removeDonation(heldQueue.donation);
+			addDonation(newDonation);
+			heldQueue.donation = newDonation;
+			return true;
+		}
+
+		private void addDonation(int donation) {
+			if (donation >= 0 && donations[donation]++ == 0)
+				donationMask |= 1 << donation;
+		}
+
+		private void removeDonation(int donation) {
+			if (donation >= 0 && --donations[donation] == 0)
+				donationMask &= ~(1 << donation);
 		}
 
 		public int getEffectivePriority() {
@@ -379,9 +563,8 @@ public class PriorityScheduler extends Scheduler {
 			return;
 			
 			this.priority = priority;
-			// implement me
-			
-			this.effectivePriority = calcEffectivePriority();
+
+			updateEffectivePriority();
 		}
 
 		/**
@@ -413,19 +596,16 @@ public class PriorityScheduler extends Scheduler {
 		* @see	nachos.threads.ThreadQueue#nextThread
 		*/
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
-			this.acquiredResource.add(waitQueue);
 			this.waitingResource = null;
-			ThreadState prev = waitQueue.holder;
-			if (prev==null)
-				return;
-			this.calcEffectivePriority();
-			//prev.calcEffectivePriority();
+			waitQueue.donation = waitQueue.getThreadPriority();
+			addDonation(waitQueue.donation);
+			updateEffectivePriority();
 		}	
 
 		public void relinquish(PriorityQueue acqQueue){
-			this.acquiredResource.remove(acqQueue);
-			this.calcEffectivePriority();
+			removeDonation(acqQueue.donation);
+			acqQueue.donation = -1;
+			updateEffectivePriority();
 		}
 
 		@Override
@@ -454,8 +634,20 @@ public class PriorityScheduler extends Scheduler {
 		protected int priority;
 
 		
-		protected HashSet<PriorityQueue> acquiredResource = new HashSet<PriorityQueue>(); //Acquired resources
+		/**
+		* The number of held queues donating each priority, and a bitmask of
+		* the priorities with a nonzero count.
+		*/
+		private int[] donations = new int[priorityMaximum+1];
+		private int donationMask = 0;
 		protected PriorityQueue waitingResource = null; //Resource currently waiting for
+
+		/** This thread's position in <tt>waitingResource</tt>'s heap. */
+		int queueIndex = -1;
+		/** The priority <tt>waitingResource</tt> orders this thread by. */
+		int queueKey;
+		/** When this thread started waiting on <tt>waitingResource</tt>. */
+		long queueSeq;
     }
 
 
@@ -703,11 +895,91 @@ public class PriorityScheduler extends Scheduler {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	private static void test6(){
+		//Test6: Test donation along a long chain of holders
+		System.out.println("----- PriorityQueue TEST6 -----");
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+		int n = 50;
+		ThreadQueue[] queues = new ThreadQueue[n];
+		KThread[] threads = new KThread[n+1];
+		for (int i=0; i<=n; i++){
+			threads[i] = new KThread(new Tester(i)).setName("thread "+i);
+			scheduler.setPriority(threads[i],1);
+		}
+
+		// thread i holds queue i, and waits on queue i-1
+		for (int i=0; i<n; i++){
+			queues[i] = scheduler.newThreadQueue(true);
+			queues[i].acquire(threads[i]);
+			if (i > 0)
+				queues[i-1].waitForAccess(threads[i]);
+		}
+		queues[n-1].waitForAccess(threads[n]);
+
+		scheduler.setPriority(threads[n],6);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 6);
+		scheduler.setPriority(threads[n/2],7);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 7);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[n-1]) == 6);
+		scheduler.setPriority(threads[n/2],1);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 6);
+
+		// releasing the end of the chain withdraws its donation
+		Lib.assertTrue(queues[n-1].nextThread() == threads[n]);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[n-1]) == 1);
+		Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+		System.out.println("chain of "+n+" ok");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static void test7(){
+		//Test7: Test that queues without donation, like those of
+		//Condition and Semaphore, wake by effective priority
+		System.out.println("----- PriorityQueue TEST7 -----");
+		boolean intStatus = Machine.interrupt().disable();
+
+		PriorityScheduler scheduler = new PriorityScheduler();
+		ThreadQueue lockQueue = scheduler.newThreadQueue(true);
+		ThreadQueue wakeQueue = scheduler.newThreadQueue(false);
+		KThread low = new KThread(new Tester(1)).setName("low");
+		KThread mid = new KThread(new Tester(2)).setName("mid");
+		KThread high = new KThread(new Tester(3)).setName("high");
+		KThread other = new KThread(new Tester(4)).setName("other");
+		scheduler.setPriority(low,1);
+		scheduler.setPriority(mid,4);
+		scheduler.setPriority(high,6);
+		scheduler.setPriority(other,5);
+
+		// low holds a lock, and sleeps after mid
+		lockQueue.acquire(low);
+		wakeQueue.waitForAccess(mid);
+		wakeQueue.waitForAccess(low);
+
+		// a donation to a sleeping thread moves it up
+		lockQueue.waitForAccess(high);
+		Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+		wakeQueue.waitForAccess(other);
+		wakeQueue.print();
+
+		Lib.assertTrue(wakeQueue.nextThread() == low);
+		Lib.assertTrue(wakeQueue.nextThread() == other);
+		Lib.assertTrue(wakeQueue.nextThread() == mid);
+		Lib.assertTrue(wakeQueue.nextThread() == null);
+		System.out.println("woken by effective priority ok");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	public static void selfTest(){
 		test1();
 		test2();
 		test3();
 		test4();
 		test5();
+		test6();
+		test7();
 	}
 }
@@ -0,0 +1,330 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either <i>shared</i>,
+ * by any number of readers at once, or <i>exclusive</i>, by a single writer.
+ * There are four operations:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: atomically wait until no writer holds the lock,
+ * then hold it shared.
+ * <li><tt>releaseRead()</tt>: stop holding the lock shared, handing it to a
+ * waiting writer if this was the last reader.
+ * <li><tt>acquireWrite()</tt>: atomically wait until no thread holds the
+ * lock, then hold it exclusive.
+ * <li><tt>releaseWrite()</tt>: stop holding the lock exclusive, handing it to
+ * the next writer or to every waiting reader.
+ * </ul>
+ *
+ * <p>
+ * With <i>writer preference</i>, the default, a reader waits while any writer
+ * is waiting, and a releasing writer hands the lock to the next writer before
+ * any reader, so a stream of readers cannot starve writers. Without it, a
+ * reader waits only while a writer holds the lock, and a releasing writer
+ * lets every waiting reader in first. The default is set by
+ * <tt>ReadWriteLock.writerPreference</tt>.
+ *
+ * <p>
+ * Like <tt>Lock</tt>, this is built on the scheduler's thread queues. Writers
+ * wait on a queue that transfers priority, and that readers hold shared, so a
+ * waiting writer donates its priority to the writer holding the lock, or to
+ * every reader holding it. Readers wait on a queue that does not transfer
+ * priority.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new reader-writer lock, with the configured preference. The
+     * lock will initially be free.
+     */
+    public ReadWriteLock() {
+	this(Config.getBoolean("ReadWriteLock.writerPreference", true));
+    }
+
+    /**
+     * Allocate a new reader-writer lock. The lock will initially be free.
+     *
+     * @param	writerPreference	<tt>true</tt> if waiting writers should
+     *					be given the lock before waiting
+     *					readers.
+     */
+    public ReadWriteLock(boolean writerPreference) {
+	this.writerPreference = writerPreference;
+    }
+
+    /**
+     * Atomically acquire this lock shared. The current thread must not hold
+     * this lock exclusive.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || (writerPreference && waitingWriters > 0)) {
+	    // the thread that lets this one in counts it as a reader
+	    waitingReaders++;
+	    readerQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    readers++;
+	    writerQueue.acquireShared(thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock from being held shared by the current
+     * thread.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(readers > 0);
+	readers--;
+	writerQueue.release(KThread.currentThread());
+
+	if (readers == 0 && waitingWriters > 0) {
+	    waitingWriters--;
+	    writer = writerQueue.nextThread();
+	    writer.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock exclusive. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer != null || readers > 0) {
+	    waitingWriters++;
+	    writerQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    writerQueue.acquire(thread);
+	    writer = thread;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock from being held exclusive, allowing other
+     * threads to acquire it.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (waitingWriters > 0 && (writerPreference || waitingReaders == 0)) {
+	    waitingWriters--;
+	    writer = writerQueue.nextThread();
+	    writer.ready();
+	}
+	else {
+	    writerQueue.release(writer);
+	    writer = null;
+
+	    KThread thread;
+	    while ((thread = readerQueue.nextThread()) != null) {
+		waitingReaders--;
+		readers++;
+		writerQueue.acquireShared(thread);
+		thread.ready();
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock exclusive.
+     *
+     * @return	true if the current thread holds this lock exclusive.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    private boolean writerPreference;
+
+    /** The thread holding this lock exclusive, or <tt>null</tt>. */
+    private KThread writer = null;
+    /** The number of threads holding this lock shared. */
+    private int readers = 0;
+    private int waitingReaders = 0, waitingWriters = 0;
+
+    private ThreadQueue readerQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+    private ThreadQueue writerQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+
+    private static class Reader implements Runnable {
+	Reader(ReadWriteLock lock, int[] value, Semaphore done) {
+	    this.lock = lock;
+	    this.value = value;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<100; i++) {
+		lock.acquireRead();
+		int seen = value[0];
+		KThread.yield();
+		// a writer never changes the value while a reader holds the lock
+		Lib.assertTrue(value[0] == seen);
+		lock.releaseRead();
+		KThread.yield();
+	    }
+	    done.V();
+	}
+
+	private ReadWriteLock lock;
+	private int[] value;
+	private Semaphore done;
+    }
+
+    private static class Writer implements Runnable {
+	Writer(ReadWriteLock lock, int[] value, Semaphore done) {
+	    this.lock = lock;
+	    this.value = value;
+	    this.done = done;
+	}
+
+	public void run() {
+	    for (int i=0; i<100; i++) {
+		lock.acquireWrite();
+		int seen = value[0];
+		KThread.yield();
+		value[0] = seen+1;
+		lock.releaseWrite();
+		KThread.yield();
+	    }
+	    done.V();
+	}
+
+	private ReadWriteLock lock;
+	private int[] value;
+	private Semaphore done;
+    }
+
+    /**
+     * Test that a writer waiting on a queue of <i>scheduler</i> donates to
+     * every reader holding it, including changes to its priority, and that
+     * each reader stops receiving the donation when it releases the queue.
+     *
+     * @param	scheduler	the scheduler to test.
+     * @param	additive	<tt>true</tt> if donated priority adds to a
+     *				thread's own, as tickets do.
+     */
+    private static void testDonation(Scheduler scheduler, boolean additive) {
+	ThreadQueue writerQueue = scheduler.newThreadQueue(true);
+	KThread reader1 = new KThread().setName("reader 1");
+	KThread reader2 = new KThread().setName("reader 2");
+	KThread waiter = new KThread().setName("writer");
+	int base = scheduler.getEffectivePriority(reader1);
+	scheduler.setPriority(waiter, 5);
+
+	writerQueue.acquireShared(reader1);
+	writerQueue.acquireShared(reader2);
+	writerQueue.waitForAccess(waiter);
+	int donated = additive ? base+5 : 5;
+	Lib.assertTrue(scheduler.getEffectivePriority(reader1) == donated);
+	Lib.assertTrue(scheduler.getEffectivePriority(reader2) == donated);
+
+	scheduler.setPriority(waiter, 6);
+	donated = additive ? base+6 : 6;
+	Lib.assertTrue(scheduler.getEffectivePriority(reader1) == donated);
+	Lib.assertTrue(scheduler.getEffectivePriority(reader2) == donated);
+
+	writerQueue.release(reader1);
+	Lib.assertTrue(scheduler.getEffectivePriority(reader1) == base);
+	Lib.assertTrue(scheduler.getEffectivePriority(reader2) == donated);
+	writerQueue.release(reader2);
+	Lib.assertTrue(writerQueue.nextThread() == waiter);
+	Lib.assertTrue(scheduler.getEffectivePriority(reader2) == base);
+	System.out.println("donation to readers under " +
+			   scheduler.getClass().getSimpleName() + ": ok");
+    }
+
+    /**
+     * Test that a writer waiting on a queue of an EDF scheduler passes its
+     * deadline on to every reader holding it.
+     */
+    private static void testDeadlineDonation() {
+	EDFScheduler scheduler = new EDFScheduler();
+	ThreadQueue writerQueue = scheduler.newThreadQueue(true);
+	KThread reader1 = new KThread().setName("reader 1");
+	KThread reader2 = new KThread().setName("reader 2");
+	KThread waiter = new KThread().setName("writer");
+	scheduler.setDeadline(waiter, 200);
+
+	writerQueue.acquireShared(reader1);
+	writerQueue.acquireShared(reader2);
+	writerQueue.waitForAccess(waiter);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(reader1) == 200);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(reader2) == 200);
+
+	scheduler.setDeadline(waiter, 100);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(reader1) == 100);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(reader2) == 100);
+
+	writerQueue.release(reader1);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(reader1) ==
+		       EDFScheduler.noDeadline);
+	writerQueue.release(reader2);
+	Lib.assertTrue(writerQueue.nextThread() == waiter);
+	Lib.assertTrue(scheduler.getEffectiveDeadline(reader2) ==
+		       EDFScheduler.noDeadline);
+	System.out.println("donation to readers under EDFScheduler: ok");
+    }
+
+    /**
+     * Test that readers and writers exclude each other under both
+     * preferences, and that a waiting writer donates to every reader under
+     * each scheduler that transfers priority.
+     */
+    public static void selfTest() {
+	System.out.println("----- ReadWriteLock TEST -----");
+
+	for (int pass=0; pass<2; pass++) {
+	    ReadWriteLock lock = new ReadWriteLock(pass == 0);
+	    int[] value = new int[1];
+	    Semaphore done = new Semaphore(0);
+
+	    for (int i=0; i<4; i++) {
+		new KThread(new Reader(lock, value, done)).setName("reader").fork();
+		new KThread(new Writer(lock, value, done)).setName("writer").fork();
+	    }
+	    for (int i=0; i<8; i++)
+		done.P();
+
+	    Lib.assertTrue(value[0] == 400);
+	    System.out.println("writer preference " + (pass == 0) + ": ok");
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	testDonation(new PriorityScheduler(), false);
+	testDonation(new LotteryScheduler(), true);
+	testDonation(new StrideScheduler(), true);
+	testDeadlineDonation();
+
+	Machine.interrupt().restore(intStatus);
+    }
+}
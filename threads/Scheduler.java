@@ -154,4 +154,32 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Notify this scheduler that a thread is about to be added to the ready
+     * queue, either because it yielded or because it was woken up. Called
+     * with interrupts disabled, before the thread's status changes. The
+     * default implementation does nothing.
+     *
+     * @param	thread	the thread that is becoming ready.
+     */
+    public void readyThread(KThread thread) {
+    }
+
+    /**
+     * Notify this scheduler that a thread has been given the processor.
+     * Called with interrupts disabled, as the thread starts running. The
+     * default implementation does nothing.
+     *
+     * @param	thread	the thread that is now running.
+     */
+    public void runningThread(KThread thread) {
+    }
+
+    /**
+     * Print any statistics this scheduler keeps. Called when the machine
+     * halts. The default implementation prints nothing.
+     */
+    public void printStats() {
+    }
 }
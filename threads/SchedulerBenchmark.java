@@ -0,0 +1,252 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Compares schedulers on the same synthetic workload. The workload is
+ * simulated rather than run: threads are never forked, and the benchmark
+ * itself plays the part of the processor, the alarm and a set of locks,
+ * calling the queues of each scheduler the way <tt>KThread</tt>,
+ * <tt>Alarm</tt> and <tt>Lock</tt> would, while keeping its own clock. So
+ * several schedulers can be compared in one run of Nachos, whichever one
+ * <tt>ThreadedKernel.scheduler</tt> names.
+ *
+ * <p>
+ * Each simulated thread runs for a random burst, then yields, sleeps, or
+ * takes a lock, with the relative weights given by the configuration. A
+ * thread holding a lock releases it at the end of its next burst. Threads
+ * are given random priorities, used as tickets by proportional-share
+ * schedulers. Every thread draws from its own random number generator,
+ * seeded the same way for every scheduler, so each scheduler sees the same
+ * threads making the same choices.
+ *
+ * <p>
+ * For each scheduler, the benchmark reports throughput (bursts run per 1000
+ * simulated ticks), Jain's fairness index over the ticks each thread ran,
+ * the median and 99th percentile ticks a thread waited on the ready queue,
+ * and the wall-clock cost of <tt>nextThread()</tt> on the ready queue.
+ *
+ * <p>
+ * Schedulers that time threads through <tt>Scheduler.runningThread()</tt>,
+ * such as <tt>MLFQScheduler</tt>, see no simulated time pass, so they are not
+ * meaningful to compare here.
+ *
+ * <p>
+ * The configuration keys, all prefixed with <tt>SchedulerBenchmark.</tt>,
+ * are <tt>schedulers</tt> (a comma-separated list of class names), and
+ * <tt>threads</tt>, <tt>locks</tt>, <tt>bursts</tt>, <tt>maxBurst</tt>,
+ * <tt>maxSleep</tt>, <tt>yieldWeight</tt>, <tt>sleepWeight</tt>,
+ * <tt>lockWeight</tt>, <tt>maxPriority</tt> and <tt>seed</tt>.
+ */
+public class SchedulerBenchmark {
+    /**
+     * Allocate a new benchmark, reading the workload from the configuration.
+     */
+    public SchedulerBenchmark() {
+	numThreads = Config.getInteger(prefix + "threads", 50);
+	numLocks = Config.getInteger(prefix + "locks", 4);
+	numBursts = Config.getInteger(prefix + "bursts", 100000);
+	maxBurst = Config.getInteger(prefix + "maxBurst", Stats.TimerTicks);
+	maxSleep = Config.getInteger(prefix + "maxSleep", 4*Stats.TimerTicks);
+	yieldWeight = Config.getInteger(prefix + "yieldWeight", 6);
+	sleepWeight = Config.getInteger(prefix + "sleepWeight", 2);
+	lockWeight = Config.getInteger(prefix + "lockWeight", 2);
+	maxPriority = Config.getInteger(prefix + "maxPriority",
+					PriorityScheduler.priorityMaximum);
+	seed = Config.getInteger(prefix + "seed", 0);
+
+	Lib.assertTrue(numThreads > 0 && numLocks > 0 && numBursts > 0);
+	Lib.assertTrue(maxBurst > 0 && maxSleep > 0 && maxPriority > 0);
+	Lib.assertTrue(yieldWeight >= 0 && sleepWeight >= 0 &&
+		       lockWeight >= 0 &&
+		       yieldWeight + sleepWeight + lockWeight > 0);
+    }
+
+    /**
+     * Run the workload under each configured scheduler, and print the
+     * results.
+     */
+    public static void run() {
+	String names = Config.getString(prefix + "schedulers",
+					"RoundRobinScheduler,PriorityScheduler," +
+					"LotteryScheduler");
+
+	System.out.println("----- SchedulerBenchmark -----");
+
+	SchedulerBenchmark benchmark = new SchedulerBenchmark();
+	String[] list = names.split(",");
+	for (int i=0; i<list.length; i++) {
+	    String name = list[i].trim();
+	    if (name.indexOf('.') < 0)
+		name = "nachos.threads." + name;
+
+	    benchmark.run((Scheduler) Lib.constructObject(name));
+	}
+    }
+
+    /**
+     * Run the workload under the specified scheduler, and print the results.
+     *
+     * @param	scheduler	the scheduler to benchmark.
+     */
+    public void run(Scheduler scheduler) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+	ThreadQueue[] lockQueues = new ThreadQueue[numLocks];
+	for (int i=0; i<numLocks; i++)
+	    lockQueues[i] = scheduler.newThreadQueue(true);
+	boolean[] locked = new boolean[numLocks];
+
+	HashMap<KThread, SimThread> threads = new HashMap<KThread, SimThread>();
+	SimThread[] threadList = new SimThread[numThreads];
+	for (int i=0; i<numThreads; i++) {
+	    SimThread sim = new SimThread(i);
+	    scheduler.setPriority(sim.thread,
+				  1 + sim.random.nextInt(maxPriority));
+	    threads.put(sim.thread, sim);
+	    threadList[i] = sim;
+	    readyQueue.waitForAccess(sim.thread);
+	}
+
+	PriorityQueue<SimThread> sleeping = new PriorityQueue<SimThread>();
+	Histogram readyWait = new Histogram();
+	long time = 0;
+	long picks = 0, pickNanos = 0;
+
+	for (int burst=0; burst<numBursts; burst++) {
+	    SimThread sim;
+	    while (true) {
+		while (!sleeping.isEmpty() &&
+		       sleeping.peek().wakeTime <= time) {
+		    SimThread waking = sleeping.poll();
+		    waking.readyTime = waking.wakeTime;
+		    readyQueue.waitForAccess(waking.thread);
+		}
+
+		long start = System.nanoTime();
+		KThread next = readyQueue.nextThread();
+		pickNanos += System.nanoTime() - start;
+		picks++;
+
+		if (next != null) {
+		    sim = threads.get(next);
+		    break;
+		}
+
+		// idle until the next thread wakes up
+		Lib.assertTrue(!sleeping.isEmpty());
+		time = sleeping.peek().wakeTime;
+	    }
+
+	    readyWait.record(time - sim.readyTime);
+
+	    int ticks = 1 + sim.random.nextInt(maxBurst);
+	    time += ticks;
+	    sim.runTicks += ticks;
+
+	    if (sim.heldLock >= 0) {
+		// release the lock, handing it to the next waiter
+		int lock = sim.heldLock;
+		sim.heldLock = -1;
+		KThread waiter = lockQueues[lock].nextThread();
+		if (waiter == null) {
+		    locked[lock] = false;
+		}
+		else {
+		    SimThread holder = threads.get(waiter);
+		    holder.heldLock = lock;
+		    holder.readyTime = time;
+		    readyQueue.waitForAccess(waiter);
+		}
+
+		sim.readyTime = time;
+		readyQueue.waitForAccess(sim.thread);
+		continue;
+	    }
+
+	    int choice = sim.random.nextInt(yieldWeight + sleepWeight +
+					    lockWeight);
+	    if (choice < yieldWeight) {
+		sim.readyTime = time;
+		readyQueue.waitForAccess(sim.thread);
+	    }
+	    else if (choice < yieldWeight + sleepWeight) {
+		sim.wakeTime = time + 1 + sim.random.nextInt(maxSleep);
+		sleeping.add(sim);
+	    }
+	    else {
+		int lock = sim.random.nextInt(numLocks);
+		if (locked[lock]) {
+		    lockQueues[lock].waitForAccess(sim.thread);
+		}
+		else {
+		    locked[lock] = true;
+		    lockQueues[lock].acquire(sim.thread);
+		    sim.heldLock = lock;
+		    sim.readyTime = time;
+		    readyQueue.waitForAccess(sim.thread);
+		}
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	double sum = 0, sumSquares = 0;
+	for (int i=0; i<numThreads; i++) {
+	    sum += threadList[i].runTicks;
+	    sumSquares += (double) threadList[i].runTicks *
+		threadList[i].runTicks;
+	}
+
+	String name = scheduler.getClass().getName();
+	System.out.println(name.substring(name.lastIndexOf('.')+1) + ":"
+			   + " throughput "
+			   + Math.round(numBursts * 1000000.0 / time) / 1000.0
+			   + " per 1000 ticks, fairness "
+			   + Math.round(sum * sum * 1000 /
+					(numThreads * sumSquares)) / 1000.0
+			   + ", wait p50 " + readyWait.getPercentile(0.50)
+			   + " p99 " + readyWait.getPercentile(0.99)
+			   + ", nextThread " + (pickNanos / picks) + " ns");
+    }
+
+    /**
+     * A simulated thread: a thread that is never forked, and the state the
+     * benchmark keeps for it.
+     */
+    private class SimThread implements Comparable<SimThread> {
+	SimThread(int index) {
+	    this.index = index;
+	    random = new Random(seed*1000003L + index);
+	    thread = new KThread().setName("benchmark " + index);
+	}
+
+	public int compareTo(SimThread other) {
+	    if (wakeTime != other.wakeTime)
+		return (wakeTime < other.wakeTime) ? -1 : 1;
+	    return index - other.index;
+	}
+
+	int index;
+	Random random;
+	KThread thread;
+	long readyTime = 0;
+	long wakeTime;
+	long runTicks = 0;
+	/** The lock this thread holds, or -1. */
+	int heldLock = -1;
+    }
+
+    private static final String prefix = "SchedulerBenchmark.";
+
+    private int numThreads, numLocks, numBursts;
+    private int maxBurst, maxSleep;
+    private int yieldWeight, sleepWeight, lockWeight;
+    private int maxPriority;
+    private long seed;
+}
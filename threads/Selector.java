@@ -0,0 +1,348 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+
+/**
+ * A <i>selector</i> lets a thread wait until any one of several sources is
+ * ready, instead of forking a thread to wait on each. A source is ready when
+ * a thread could take something from it without waiting:
+ *
+ * <ul>
+ * <li>a <tt>Semaphore</tt>, when its value is greater than zero.
+ * <li>a <tt>SynchList</tt>, when it is not empty.
+ * <li>a <tt>Communicator</tt>, when a speaker is waiting for a listener.
+ * </ul>
+ *
+ * <p>
+ * Each source is registered once, and given a key: the number of sources
+ * registered with this selector before it. <tt>select()</tt> returns the key
+ * of a ready source, and the caller then takes from it, with
+ * <tt>Semaphore.tryP()</tt>, <tt>SynchList.poll()</tt> or
+ * <tt>Communicator.listen()</tt>. A source stays ready until it is emptied,
+ * so if another thread takes from it first, the caller may find it empty.
+ *
+ * <p>
+ * A source tells the selectors watching it when it becomes ready, and they
+ * queue its key, so a selector only ever looks at sources that have become
+ * ready. A key stays queued after <tt>select()</tt> returns it, behind any
+ * others that are ready, and is dropped once it is found empty, so a busy
+ * source cannot starve the rest.
+ */
+public class Selector {
+    /**
+     * Allocate a new selector, with no sources.
+     */
+    public Selector() {
+    }
+
+    /**
+     * Watch a semaphore.
+     *
+     * @param	semaphore	the semaphore to watch.
+     * @return	the key of the semaphore.
+     */
+    public int register(final Semaphore semaphore) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (semaphore.watchers == null)
+	    semaphore.watchers = new Watchers();
+
+	int key = register(new Key(semaphore.watchers) {
+		boolean isReady() { return semaphore.isReady(); }
+	    });
+
+	Machine.interrupt().restore(intStatus);
+	return key;
+    }
+
+    /**
+     * Watch a synchronized list.
+     *
+     * @param	list	the list to watch.
+     * @return	the key of the list.
+     */
+    public int register(final SynchList list) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (list.watchers == null)
+	    list.watchers = new Watchers();
+
+	int key = register(new Key(list.watchers) {
+		boolean isReady() { return list.isReady(); }
+	    });
+
+	Machine.interrupt().restore(intStatus);
+	return key;
+    }
+
+    /**
+     * Watch a communicator.
+     *
+     * @param	communicator	the communicator to watch.
+     * @return	the key of the communicator.
+     */
+    public int register(final Communicator communicator) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (communicator.watchers == null)
+	    communicator.watchers = new Watchers();
+
+	int key = register(new Key(communicator.watchers) {
+		boolean isReady() { return communicator.isReady(); }
+	    });
+
+	Machine.interrupt().restore(intStatus);
+	return key;
+    }
+
+    private int register(Key key) {
+	key.index = keys.size();
+	keys.add(key);
+	key.watchers.add(key);
+
+	if (key.isReady())
+	    signal(key);
+
+	return key.index;
+    }
+
+    /**
+     * Stop watching a source. Its key is not reused.
+     *
+     * @param	key	the key of the source.
+     */
+    public void cancel(int key) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Key k = keys.get(key);
+	if (k != null) {
+	    keys.set(key, null);
+	    k.watchers.remove(k);
+	    // a queued key is dropped when it comes up
+	    k.cancelled = true;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Stop watching every source.
+     */
+    public void close() {
+	for (int i=0; i<keys.size(); i++)
+	    cancel(i);
+    }
+
+    /**
+     * Wait until one of the sources is ready, and return its key.
+     *
+     * @return	the key of a ready source.
+     */
+    public int select() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int key;
+	while ((key = selectNow()) == -1) {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	// let another selecting thread look at any other ready sources
+	if (readyHead != null && readyHead.index != key) {
+	    KThread thread = waitQueue.nextThread();
+	    if (thread != null)
+		thread.ready();
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return key;
+    }
+
+    /**
+     * Return the key of a ready source, without waiting.
+     *
+     * @return	the key of a ready source, or -1 if none is ready.
+     */
+    public int selectNow() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int key = -1;
+	while (readyHead != null) {
+	    Key k = readyHead;
+	    readyHead = k.nextReady;
+	    if (readyHead == null)
+		readyTail = null;
+	    k.nextReady = null;
+
+	    if (k.cancelled || !k.isReady()) {
+		k.queued = false;
+		continue;
+	    }
+
+	    // keep the key queued, behind the others, until it is found empty
+	    append(k);
+	    key = k.index;
+	    break;
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return key;
+    }
+
+    /**
+     * Queue a key whose source has become ready, and wake a selecting thread.
+     */
+    private void signal(Key key) {
+	if (key.queued)
+	    return;
+
+	key.queued = true;
+	append(key);
+
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    thread.ready();
+    }
+
+    private void append(Key key) {
+	if (readyTail == null)
+	    readyHead = key;
+	else
+	    readyTail.nextReady = key;
+	readyTail = key;
+    }
+
+    /**
+     * The selectors watching a source. A source keeps one of these, created
+     * when it is first registered, and calls <tt>signal()</tt> whenever it
+     * becomes ready.
+     */
+    static class Watchers {
+	/**
+	 * Tell each watching selector that the source is ready. Interrupts
+	 * must be disabled.
+	 */
+	void signal() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Key key=head; key!=null; key=key.nextWatcher)
+		key.getSelector().signal(key);
+	}
+
+	private void add(Key key) {
+	    key.prevWatcher = null;
+	    key.nextWatcher = head;
+	    if (head != null)
+		head.prevWatcher = key;
+	    head = key;
+	}
+
+	private void remove(Key key) {
+	    if (key.prevWatcher == null)
+		head = key.nextWatcher;
+	    else
+		key.prevWatcher.nextWatcher = key.nextWatcher;
+	    if (key.nextWatcher != null)
+		key.nextWatcher.prevWatcher = key.prevWatcher;
+	}
+
+	private Key head = null;
+    }
+
+    /**
+     * A source registered with this selector.
+     */
+    private abstract class Key {
+	Key(Watchers watchers) {
+	    this.watchers = watchers;
+	}
+
+	/** Return <tt>true</tt> if the source is ready. */
+	abstract boolean isReady();
+
+	Selector getSelector() {
+	    return Selector.this;
+	}
+
+	int index;
+	Watchers watchers;
+	boolean cancelled = false;
+	/** <tt>true</tt> while this key is in the ready queue. */
+	boolean queued = false;
+	Key nextReady = null;
+	Key prevWatcher, nextWatcher;
+    }
+
+    /** The registered sources, by key; <tt>null</tt> once cancelled. */
+    private ArrayList<Key> keys = new ArrayList<Key>();
+    /** Keys whose sources have become ready, oldest first. */
+    private Key readyHead = null, readyTail = null;
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
+
+    private static class Sender implements Runnable {
+	Sender(SynchList[] lists, Semaphore semaphore) {
+	    this.lists = lists;
+	    this.semaphore = semaphore;
+	}
+
+	public void run() {
+	    for (int i=0; i<lists.length; i++) {
+		lists[(i*7) % lists.length].add(new Integer(i));
+		if (i % 3 == 0)
+		    KThread.yield();
+	    }
+	    semaphore.V();
+	}
+
+	private SynchList[] lists;
+	private Semaphore semaphore;
+    }
+
+    /**
+     * Test that one thread can take everything sent to many sources.
+     */
+    public static void selfTest() {
+	System.out.println("----- Selector TEST -----");
+
+	SynchList[] lists = new SynchList[64];
+	Selector selector = new Selector();
+	for (int i=0; i<lists.length; i++) {
+	    lists[i] = new SynchList();
+	    Lib.assertTrue(selector.register(lists[i]) == i);
+	}
+	Semaphore done = new Semaphore(0);
+	int doneKey = selector.register(done);
+
+	final Communicator comm = new Communicator();
+	int commKey = selector.register(comm);
+
+	new KThread(new Sender(lists, done)).setName("sender").fork();
+	new KThread(new Runnable() {
+		public void run() { comm.speak(42); }
+	    }).setName("speaker").fork();
+
+	int received = 0;
+	boolean finished = false, heard = false;
+	while (!finished || !heard || received < lists.length) {
+	    int key = selector.select();
+	    if (key == doneKey) {
+		if (done.tryP())
+		    finished = true;
+	    }
+	    else if (key == commKey) {
+		Lib.assertTrue(comm.listen() == 42);
+		heard = true;
+	    }
+	    else if (lists[key].poll() != null) {
+		received++;
+	    }
+	}
+
+	Lib.assertTrue(selector.selectNow() == -1);
+	selector.close();
+	System.out.println("received " + received + " messages");
+    }
+}
@@ -61,19 +61,49 @@ public class Semaphore {
 	}
 	else {
 	    value++;
+	    if (watchers != null)
+		watchers.signal();
 	}
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically decrement this semaphore if it is non-zero, without waiting.
+     *
+     * @return	<tt>true</tt> if the semaphore was decremented.
+     */
+    public boolean tryP() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean decremented = (value > 0);
+	if (decremented)
+	    value--;
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
+    /**
+     * Test if <tt>P()</tt> would not wait. Interrupts must be disabled.
+     */
+    boolean isReady() {
+	return value > 0;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(Semaphore ping, Semaphore pong) {
+	    this(ping, pong, 10);
+	}
+
+	PingTest(Semaphore ping, Semaphore pong, int rounds) {
 	    this.ping = ping;
 	    this.pong = pong;
+	    this.rounds = rounds;
 	}
 	
 	public void run() {
-	    for (int i=0; i<10; i++) {
+	    for (int i=0; i<rounds; i++) {
 		ping.P();
 		pong.V();
 	    }
@@ -81,6 +111,7 @@ public class Semaphore {
 
 	private Semaphore ping;
 	private Semaphore pong;
+	private int rounds;
     }
 
     /**
@@ -98,7 +129,35 @@ public class Semaphore {
 	}
     }
 
+    /**
+     * Time context switches by ping-ponging between two threads through a
+     * pair of semaphores.
+     *
+     * @param	rounds	the number of round trips.
+     */
+    public static void benchmark(int rounds) {
+	Semaphore ping = new Semaphore(0);
+	Semaphore pong = new Semaphore(0);
+
+	new KThread(new PingTest(ping, pong, rounds)).setName("ping").fork();
+
+	long startTime = System.nanoTime();
+	
+	for (int i=0; i<rounds; i++) {
+	    ping.V();
+	    pong.P();
+	}
+
+	long elapsed = System.nanoTime() - startTime;
+
+	System.out.println("Semaphore benchmark: " + rounds + " round trips, " +
+			   (elapsed / Math.max(1, 2L*rounds)) +
+			   "ns per context switch");
+    }
+
     private int value;
+    /** The selectors watching this semaphore, or <tt>null</tt> if none. */
+    Selector.Watchers watchers = null;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
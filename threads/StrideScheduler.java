@@ -0,0 +1,674 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A scheduler that shares access among threads in proportion to their
+ * tickets, like a lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Each waiting thread has a <i>pass</i>, and the thread with the lowest pass
+ * is always chosen next. Every queue keeps a virtual time, the pass of the
+ * thread it chose most recently. A thread that starts waiting gets a pass one
+ * <i>stride</i> past the virtual time, where its stride is inversely
+ * proportional to its tickets. So over any interval, a thread with twice the
+ * tickets is chosen twice as often, and it never waits long for its turn.
+ *
+ * <p>
+ * Tickets are transferred through queues that transfer priority the same way
+ * a lottery scheduler transfers them: a holder's effective tickets are its
+ * own tickets plus those of every thread waiting on the queues it holds. A
+ * queue held in shared mode transfers all of its tickets to every thread
+ * holding it.
+ */
+public class StrideScheduler extends Scheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getPriority();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getEffectivePriority();
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * The stride of a thread with one ticket. Strides are this divided by
+     * the number of tickets.
+     */
+    public static final long stride1 = 1L << 31;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that chooses the waiting thread with the lowest
+     * pass. Waiting threads are kept in a binary heap ordered by pass, and
+     * then by the order in which they started waiting.
+     */
+    protected class StrideQueue extends ThreadQueue {
+	StrideQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    state.waitForAccess(this);
+	    add(state);
+	    updateDonation();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(size == 0 && !isShared());
+
+	    ThreadState state = getThreadState(thread);
+	    state.acquire(this);
+	    holder = state;
+	}
+
+	public void acquireShared(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(holder == null);
+
+	    if (sharedHolders == null)
+		sharedHolders = new ArrayList<ThreadState>();
+	    if (sharedHolders.isEmpty())
+		donation = getDonation();
+
+	    ThreadState state = getThreadState(thread);
+	    sharedHolders.add(state);
+	    state.donations += donation;
+	    state.updateEffectivePriority();
+	}
+
+	public void release(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (holder == state) {
+		holder = null;
+		state.relinquish(this);
+	    }
+	    else {
+		Lib.assertTrue(isShared() && sharedHolders.remove(state));
+		state.donations -= donation;
+		state.updateEffectivePriority();
+	    }
+
+	    if (!isShared())
+		donation = getDonation();
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(!isShared());
+
+	    ThreadState next = null;
+	    if (size > 0) {
+		next = removeAt(0);
+		virtualTime = next.pass;
+		total -= next.tickets;
+	    }
+
+	    if (holder != null)
+		holder.relinquish(this);
+
+	    holder = next;
+	    if (next == null)
+		return null;
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected ThreadState pickNextThread() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++) {
+		ThreadState state = heap[i];
+		System.out.print(state.thread + " <" + state.getPriority() +
+				 "," + state.getEffectivePriority() +
+				 "," + state.pass + "> ");
+	    }
+	    if (isShared()) {
+		System.out.print("Shared holders:");
+		for (ThreadState state : sharedHolders)
+		    System.out.print(" " + state.thread + " <" +
+				     state.getPriority() + "," +
+				     state.getEffectivePriority() + ">");
+		System.out.println();
+	    }
+	    else if (holder == null)
+		System.out.println("Holder: null");
+	    else
+		System.out.println("Holder: " + holder.thread + " <" +
+				   holder.getPriority() + "," +
+				   holder.getEffectivePriority() + "> ");
+	}
+
+	/**
+	 * Return the number of tickets this queue transfers to its holder,
+	 * which is at most <tt>priorityMaximum</tt>.
+	 */
+	int getDonation() {
+	    return transferPriority ? (int) Math.min(total, priorityMaximum) : 0;
+	}
+
+	/**
+	 * The number of tickets a waiting thread is scheduled by: its
+	 * effective tickets if this queue transfers them, or else its own.
+	 */
+	private int ticketsOf(ThreadState state) {
+	    return transferPriority ?
+		state.getEffectivePriority() : state.getPriority();
+	}
+
+	private void add(ThreadState state) {
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+
+	    state.tickets = ticketsOf(state);
+	    state.pass = virtualTime + stride(state.tickets);
+	    state.seq = nextSeq++;
+	    total += state.tickets;
+
+	    heap[size] = state;
+	    state.queueIndex = size++;
+	    siftUp(state.queueIndex);
+	}
+
+	/**
+	 * Rescale the part of a waiting thread's stride that is still to come
+	 * after its tickets have changed.
+	 */
+	void reposition(ThreadState state) {
+	    if (state.queueIndex < 0 || heap[state.queueIndex] != state)
+		return;
+
+	    int tickets = ticketsOf(state);
+	    if (tickets == state.tickets)
+		return;
+
+	    long remain = state.pass - virtualTime;
+	    state.pass = virtualTime +
+		(long) ((double) remain * stride(tickets) / stride(state.tickets));
+	    total += (long) tickets - state.tickets;
+	    state.tickets = tickets;
+
+	    siftUp(state.queueIndex);
+	    siftDown(state.queueIndex);
+	}
+
+	/**
+	 * Bring the tickets this queue transfers to its holder up to date,
+	 * and propagate any change along the chain of holders.
+	 */
+	private void updateDonation() {
+	    if (isShared()) {
+		updateSharedDonation();
+		return;
+	    }
+	    if (holder == null) {
+		donation = getDonation();
+		return;
+	    }
+
+	    if (holder.changeDonation(this))
+		holder.updateEffectivePriority();
+	}
+
+	/**
+	 * Bring the tickets this queue transfers to each of its shared holders
+	 * up to date, and propagate any change along their chains of holders.
+	 */
+	void updateSharedDonation() {
+	    int newDonation = getDonation();
+	    if (newDonation == donation)
+		return;
+
+	    long delta = (long) newDonation - donation;
+	    donation = newDonation;
+	    for (ThreadState state : sharedHolders) {
+		state.donations += delta;
+		state.updateEffectivePriority();
+	    }
+	}
+
+	/** Return <tt>true</tt> if any thread holds this queue shared. */
+	boolean isShared() {
+	    return sharedHolders != null && !sharedHolders.isEmpty();
+	}
+
+	private ThreadState removeAt(int i) {
+	    ThreadState state = heap[i];
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+
+	    if (last != state) {
+		place(last, i);
+		siftUp(i);
+		siftDown(last.queueIndex);
+	    }
+
+	    state.queueIndex = -1;
+	    return state;
+	}
+
+	/** Return <tt>true</tt> if <i>a</i> should be chosen before <i>b</i>. */
+	private boolean before(ThreadState a, ThreadState b) {
+	    return a.pass < b.pass || (a.pass == b.pass && a.seq < b.seq);
+	}
+
+	private void siftUp(int i) {
+	    ThreadState state = heap[i];
+	    while (i > 0) {
+		int parent = (i-1)/2;
+		if (!before(state, heap[parent]))
+		    break;
+		place(heap[parent], i);
+		i = parent;
+	    }
+	    place(state, i);
+	}
+
+	private void siftDown(int i) {
+	    ThreadState state = heap[i];
+	    while (true) {
+		int child = 2*i+1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+		place(heap[child], i);
+		i = child;
+	    }
+	    place(state, i);
+	}
+
+	private void place(ThreadState state, int i) {
+	    heap[i] = state;
+	    state.queueIndex = i;
+	}
+
+	/**
+	 * The tickets this queue currently transfers to its holder, or to each
+	 * of its shared holders, as counted in their <tt>donations</tt>.
+	 */
+	int donation = 0;
+	/** The thread holding this queue, or <tt>null</tt>. */
+	ThreadState holder = null;
+	/** The threads holding this queue shared, or <tt>null</tt>. */
+	private ArrayList<ThreadState> sharedHolders = null;
+
+	/** The pass of the thread chosen most recently. */
+	private long virtualTime = 0;
+	/** The total tickets of the waiting threads. */
+	private long total = 0;
+	private ThreadState[] heap = new ThreadState[8];
+	private int size = 0;
+	private long nextSeq = 0;
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	private boolean transferPriority;
+    }
+
+    private static long stride(int tickets) {
+	return Math.max(1, stride1 / Math.max(1, tickets));
+    }
+
+    /**
+     * The scheduling state of a thread: its tickets, its effective tickets,
+     * the queue it is waiting on, and its pass within that queue.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    setPriority(priorityDefault);
+	}
+
+	/**
+	 * Return the tickets of the associated thread.
+	 *
+	 * @return	the tickets of the associated thread.
+	 */
+	public int getPriority() {
+	    return priority;
+	}
+
+	/**
+	 * Return the effective tickets of the associated thread.
+	 *
+	 * @return	the effective tickets of the associated thread.
+	 */
+	public int getEffectivePriority() {
+	    return effectivePriority;
+	}
+
+	/**
+	 * Set the tickets of the associated thread to the specified value.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    this.priority = priority;
+
+	    // queues that don't transfer tickets schedule by these
+	    if (waitingOn != null)
+		waitingOn.reposition(this);
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Called when <tt>waitForAccess(thread)</tt> (where <tt>thread</tt> is
+	 * the associated thread) is invoked on the specified queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(StrideQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+	    waitingOn = waitQueue;
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever is
+	 * guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue the associated thread now holds.
+	 */
+	public void acquire(StrideQueue waitQueue) {
+	    waitingOn = null;
+	    waitQueue.donation = waitQueue.getDonation();
+	    donations += waitQueue.donation;
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Called when the associated thread gives up a queue it holds.
+	 *
+	 * @param	heldQueue	the queue the associated thread held.
+	 */
+	public void relinquish(StrideQueue heldQueue) {
+	    donations -= heldQueue.donation;
+	    heldQueue.donation = 0;
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective tickets of the associated thread, up to
+	 * <tt>priorityMaximum</tt>. A change is passed on to the queue it waits
+	 * on, and from there to that queue's holder, and so on until nothing
+	 * changes. A queue held shared updates each of its holders this way in
+	 * turn.
+	 */
+	void updateEffectivePriority() {
+	    ThreadState state = this;
+	    while (true) {
+		int newPriority = (int) Math.min(state.priority + state.donations,
+						 priorityMaximum);
+		if (newPriority == state.effectivePriority)
+		    return;
+		state.effectivePriority = newPriority;
+
+		StrideQueue waitQueue = state.waitingOn;
+		if (waitQueue == null)
+		    return;
+		waitQueue.reposition(state);
+
+		if (waitQueue.isShared()) {
+		    waitQueue.updateSharedDonation();
+		    return;
+		}
+		state = waitQueue.holder;
+		if (state == null) {
+		    waitQueue.donation = waitQueue.getDonation();
+		    return;
+		}
+		// a cycle of waiting threads would transfer tickets forever
+		if (!state.changeDonation(waitQueue) || state == this)
+		    return;
+	    }
+	}
+
+	/**
+	 * Replace the tickets counted for a queue this thread holds with what
+	 * the queue transfers now.
+	 *
+	 * @return	<tt>true</tt> if the transfer changed.
+	 */
+	boolean changeDonation(StrideQueue heldQueue) {
+	    int newDonation = heldQueue.getDonation();
+	    if (newDonation == heldQueue.donation)
+		return false;
+
+	    donations += (long) newDonation - heldQueue.donation;
+	    heldQueue.donation = newDonation;
+	    return true;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets of the associated thread. */
+	protected int priority = 0;
+	/** The tickets of the associated thread, plus those transferred. */
+	protected int effectivePriority = 0;
+
+	/** The total tickets transferred by the queues this thread holds. */
+	private long donations = 0;
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	private StrideQueue waitingOn = null;
+
+	/** This thread's position in <tt>waitingOn</tt>'s heap. */
+	private int queueIndex = -1;
+	/** The tickets <tt>waitingOn</tt> schedules this thread by. */
+	private int tickets;
+	/** This thread's pass in <tt>waitingOn</tt>. */
+	private long pass;
+	/** When this thread started waiting on <tt>waitingOn</tt>. */
+	private long seq;
+    }
+
+    private static class Tester implements Runnable {
+	Tester(int which) {
+	    this.which = which;
+	}
+
+	public void run() {
+	    System.out.println("*** Thread " + which + " running");
+	}
+
+	private int which;
+    }
+
+    /**
+     * Test that threads are chosen in proportion to their tickets, and that
+     * tickets are transferred to the holder of a queue, saturating at
+     * <tt>priorityMaximum</tt>.
+     */
+    public static void selfTest() {
+	System.out.println("----- StrideQueue TEST -----");
+	boolean intStatus = Machine.interrupt().disable();
+
+	StrideScheduler scheduler = new StrideScheduler();
+	ThreadQueue readyQueue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[3];
+	int[] tickets = { 1, 2, 5 };
+	int[] chosen = new int[threads.length];
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(new Tester(i)).setName("thread " + i);
+	    scheduler.setPriority(threads[i], tickets[i]);
+	    readyQueue.waitForAccess(threads[i]);
+	}
+
+	// each chosen thread waits again, as if it had run and yielded
+	for (int round=0; round<800; round++) {
+	    KThread thread = readyQueue.nextThread();
+	    for (int i=0; i<threads.length; i++) {
+		if (thread == threads[i])
+		    chosen[i]++;
+	    }
+	    readyQueue.waitForAccess(thread);
+	}
+	System.out.println("chosen " + chosen[0] + ", " + chosen[1] + ", " +
+			   chosen[2] + " times");
+	Lib.assertTrue(chosen[0] == 100 && chosen[1] == 200 &&
+		       chosen[2] == 500);
+
+	ThreadQueue lockQueue = scheduler.newThreadQueue(true);
+	KThread holder = new KThread(new Tester(3)).setName("holder");
+	lockQueue.acquire(holder);
+	for (int i=0; i<threads.length; i++) {
+	    readyQueue.nextThread();
+	}
+	for (int i=0; i<threads.length; i++)
+	    lockQueue.waitForAccess(threads[i]);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 9);
+
+	lockQueue.nextThread();
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+
+	// tickets transferred beyond the int range saturate
+	ThreadQueue bigQueue = scheduler.newThreadQueue(true);
+	ThreadQueue otherQueue = scheduler.newThreadQueue(true);
+	KThread big1 = new KThread(new Tester(4)).setName("big 1");
+	KThread big2 = new KThread(new Tester(5)).setName("big 2");
+	scheduler.setPriority(big1, priorityMaximum);
+	scheduler.setPriority(big2, priorityMaximum-1);
+	bigQueue.acquire(holder);
+	bigQueue.waitForAccess(big1);
+	bigQueue.waitForAccess(big2);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == priorityMaximum);
+
+	// and the holder still gets the shortest stride
+	KThread owner = new KThread(new Tester(6)).setName("owner");
+	KThread small = new KThread(new Tester(7)).setName("small");
+	scheduler.setPriority(small, 2);
+	otherQueue.acquire(owner);
+	otherQueue.waitForAccess(small);
+	otherQueue.waitForAccess(holder);
+	Lib.assertTrue(scheduler.getEffectivePriority(owner) == priorityMaximum);
+	Lib.assertTrue(otherQueue.nextThread() == holder);
+	Lib.assertTrue(otherQueue.nextThread() == small);
+
+	Lib.assertTrue(bigQueue.nextThread() == big1);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+	System.out.println("saturated transfer: ok");
+
+	Machine.interrupt().restore(intStatus);
+    }
+}
@@ -29,6 +29,11 @@ public class SynchList {
 	lock.acquire();
 	list.add(o);
 	listEmpty.wake();
+	if (watchers != null) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    watchers.signal();
+	    Machine.interrupt().restore(intStatus);
+	}
 	lock.release();
     }
 
@@ -50,6 +55,31 @@ public class SynchList {
 	return o;
     }
 
+    /**
+     * Remove an object from the front of the queue, without waiting.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue is empty.
+     */
+    public Object poll() {
+	Object o = null;
+
+	lock.acquire();
+	if (!list.isEmpty())
+	    o = list.removeFirst();
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Test if <tt>removeFirst()</tt> would not wait. Interrupts must be
+     * disabled.
+     */
+    boolean isReady() {
+	return !list.isEmpty();
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
@@ -84,5 +114,7 @@ public class SynchList {
     private LinkedList<Object> list;
     private Lock lock;
     private Condition listEmpty;
+    /** The selectors watching this queue, or <tt>null</tt> if none. */
+    Selector.Watchers watchers = null;
 }
 
@@ -91,6 +91,38 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Notify this thread queue that a thread has received shared access:
+     * access held alongside any other threads with shared access, as the
+     * readers of a <tt>ReadWriteLock</tt> hold it. No thread may have
+     * exclusive access at the same time, but threads may be waiting.
+     *
+     * <p>
+     * If the limited access object transfers priority, then the threads
+     * waiting for access will donate priority to every thread with shared
+     * access. This implementation does nothing, which is correct for a queue
+     * that does not transfer priority.
+     *
+     * @param	thread	the thread that has received shared access.
+     */
+    public void acquireShared(KThread thread) {
+    }
+
+    /**
+     * Notify this thread queue that a thread has given up its access,
+     * exclusive or shared, without handing it to a waiting thread. A thread
+     * that gives up exclusive access to a waiting thread should instead be
+     * replaced by calling <tt>nextThread()</tt>.
+     *
+     * <p>
+     * This implementation does nothing, which is correct for a queue that
+     * does not transfer priority.
+     *
+     * @param	thread	the thread giving up access.
+     */
+    public void release(KThread thread) {
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
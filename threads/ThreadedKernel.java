@@ -21,6 +21,8 @@ public class ThreadedKernel extends Kernel {
     // set scheduler
     String schedulerName = Config.getString("ThreadedKernel.scheduler");
     scheduler = (Scheduler) Lib.constructObject(schedulerName);
+    if (Config.getBoolean("ThreadedKernel.instrumentScheduler", false))
+        scheduler = new InstrumentedScheduler(scheduler);
 
     // set fileSystem
     String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
@@ -48,14 +50,34 @@ public class ThreadedKernel extends Kernel {
     public void selfTest() {  
         LotteryScheduler.selfTest();
         // PriorityScheduler.selfTest();     
+        // MLFQScheduler.selfTest();
+        // EDFScheduler.selfTest();
+        // CFSScheduler.selfTest();
+        // StrideScheduler.selfTest();
         //Communicator.selfTest();
+        // BoundedChannel.selfTest();
+        // Selector.selfTest();
+        // ReadWriteLock.selfTest();
         //Condition2.selfTest();
         // KThread.selfTest();
+        // Alarm.selfTest();
         //Semaphore.selfTest();
         //SynchList.selfTest();
         if (Machine.bank() != null) {
             ElevatorBank.selfTest();
         }
+        if (Config.getBoolean("Interrupt.benchmark", false)) {
+            Interrupt.selfTest();
+        }
+        if (Config.getBoolean("Semaphore.benchmark", false)) {
+            Semaphore.benchmark(1000000);
+        }
+        if (Config.getBoolean("BoundedChannel.benchmark", false)) {
+            BoundedChannel.benchmark(1000000);
+        }
+        if (Config.getBoolean("Scheduler.benchmark", false)) {
+            SchedulerBenchmark.run();
+        }
         
         
     }
@@ -74,6 +96,14 @@ public class ThreadedKernel extends Kernel {
     Machine.halt();
     }
 
+    /**
+     * Print the statistics kept by the scheduler.
+     */
+    public void printStats() {
+    if (scheduler != null)
+        scheduler.printStats();
+    }
+
     /** Globally accessible reference to the scheduler. */
     public static Scheduler scheduler = null;
     /** Globally accessible reference to the alarm. */
@@ -85,6 +115,10 @@ public class ThreadedKernel extends Kernel {
     private static RoundRobinScheduler dummy1 = null;
     private static PriorityScheduler dummy2 = null;
     private static LotteryScheduler dummy3 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static EDFScheduler dummy10 = null;
+    private static CFSScheduler dummy11 = null;
     private static Condition2 dummy4 = null;
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
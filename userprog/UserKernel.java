@@ -83,6 +83,8 @@ public class UserKernel extends ThreadedKernel {
     public void selfTest() {
 	super.selfTest();
 
+	Machine.processor().selfTest();
+
 	System.out.println("Testing allocation");
 	int a=allocate(),b=allocate();
 	System.out.println("allocate "+a+" "+b);